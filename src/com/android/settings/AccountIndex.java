@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Accounts sorted by name in the order of the current locale, optionally grouped by
+ * account type. Each name is turned into a CollationKey once, when the account is
+ * inserted, so ordering the accounts later only compares the keys' bytes.
+ *
+ * The locale is taken when the index is created; screens create a new index when they
+ * are recreated for a configuration change.
+ */
+class AccountIndex {
+    static final class Entry {
+        final Account account;
+        final CollationKey nameKey;
+
+        Entry(Account account, CollationKey nameKey) {
+            this.account = account;
+            this.nameKey = nameKey;
+        }
+    }
+
+    private final Collator mCollator = Collator.getInstance();
+    private final boolean mGroupByType;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final HashMap<Account, Entry> mByAccount = new HashMap<Account, Entry>();
+
+    private final Comparator<Entry> mComparator = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (mGroupByType) {
+                int result = a.account.type.compareTo(b.account.type);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            int result = a.nameKey.compareTo(b.nameKey);
+            // names that collate equal still need a stable order
+            return result != 0 ? result : a.account.name.compareTo(b.account.name);
+        }
+    };
+
+    AccountIndex(boolean groupByType) {
+        mGroupByType = groupByType;
+        // case and accent differences only decide between otherwise equal names
+        mCollator.setStrength(Collator.TERTIARY);
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    Entry get(int position) {
+        return mEntries.get(position);
+    }
+
+    boolean contains(Account account) {
+        return mByAccount.containsKey(account);
+    }
+
+    /**
+     * Returns the sort key of an account in the index, or null if it isn't in it.
+     */
+    CollationKey getSortKey(Account account) {
+        Entry entry = mByAccount.get(account);
+        return entry != null ? entry.nameKey : null;
+    }
+
+    /**
+     * Returns the position of an account, or -1 if it isn't in the index.
+     */
+    int indexOf(Account account) {
+        Entry entry = mByAccount.get(account);
+        if (entry == null) {
+            return -1;
+        }
+        return Collections.binarySearch(mEntries, entry, mComparator);
+    }
+
+    /**
+     * Inserts an account at its sorted position.
+     * @return the position, or -1 if the account was already in the index
+     */
+    int insert(Account account) {
+        if (mByAccount.containsKey(account)) {
+            return -1;
+        }
+        Entry entry = new Entry(account, mCollator.getCollationKey(account.name));
+        int position = Collections.binarySearch(mEntries, entry, mComparator);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        mEntries.add(position, entry);
+        mByAccount.put(account, entry);
+        return position;
+    }
+
+    /**
+     * Removes an account.
+     * @return the position it had, or -1 if it wasn't in the index
+     */
+    int remove(Account account) {
+        int position = indexOf(account);
+        if (position >= 0) {
+            mEntries.remove(position);
+            mByAccount.remove(account);
+        }
+        return position;
+    }
+
+    /**
+     * Brings the index in line with the given accounts and reports the difference.
+     * Accounts already in the index keep their keys.
+     * @param added receives the accounts that were inserted
+     * @param removed receives the accounts that were removed
+     */
+    void update(Account[] accounts, List<Account> added, List<Account> removed) {
+        HashSet<Account> current = new HashSet<Account>(accounts.length);
+        for (Account account : accounts) {
+            current.add(account);
+        }
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Account account = mEntries.get(i).account;
+            if (!current.contains(account)) {
+                mEntries.remove(i);
+                mByAccount.remove(account);
+                removed.add(account);
+            }
+        }
+        for (Account account : accounts) {
+            if (insert(account) >= 0) {
+                added.add(account);
+            }
+        }
+    }
+}
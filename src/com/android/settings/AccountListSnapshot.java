@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The account list ManageAccountsSettings showed last, persisted so a cold start can
+ * draw it before the account and sync managers have answered.
+ *
+ * File format, all big endian as written by DataOutputStream:
+ * <pre>
+ *   int     MAGIC
+ *   int     FORMAT_VERSION
+ *   int     flags (FLAG_*)
+ *   int     number of account types, then for each:
+ *             UTF   account type
+ *             int   number of authorities, then that many UTF authorities
+ *   int     number of accounts, then for each:
+ *             int   index of the account type above
+ *             UTF   account name
+ *             byte  AccountPreference.SYNC_* status
+ * </pre>
+ * A file with another magic or version is ignored, so changing the layout only needs a
+ * new FORMAT_VERSION.
+ */
+class AccountListSnapshot {
+    private static final String TAG = "AccountSettings";
+    private static final String FILE_NAME = "account_list_snapshot";
+    private static final int MAGIC = 0x41435354;    // "ACST"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_MASTER_SYNC_AUTOMATICALLY = 1 << 0;
+    private static final int FLAG_BACKGROUND_DATA = 1 << 1;
+
+    static class Entry {
+        final Account account;
+        final ArrayList<String> authorities;
+        final int status;
+
+        Entry(Account account, ArrayList<String> authorities, int status) {
+            this.account = account;
+            this.authorities = authorities;
+            this.status = status;
+        }
+    }
+
+    /** Writes the snapshots in the order they were handed over, off the main thread. */
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    /** The snapshot last read or handed to the writer, only touched on the main thread. */
+    private static AccountListSnapshot sLastWritten;
+
+    boolean masterSyncAutomatically;
+    boolean backgroundDataSetting;
+    final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    void add(Account account, ArrayList<String> authorities, int status) {
+        entries.add(new Entry(account, authorities, status));
+    }
+
+    Account[] getAccounts() {
+        Account[] accounts = new Account[entries.size()];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = entries.get(i).account;
+        }
+        return accounts;
+    }
+
+    /**
+     * Reads the last written snapshot.
+     * @return the snapshot, or null if there is none or it can't be used
+     */
+    static AccountListSnapshot read(Context context) {
+        final long start = SystemClock.uptimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    context.openFileInput(FILE_NAME)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring account list snapshot of another format");
+                return null;
+            }
+            AccountListSnapshot snapshot = new AccountListSnapshot();
+            final int flags = in.readInt();
+            snapshot.masterSyncAutomatically = (flags & FLAG_MASTER_SYNC_AUTOMATICALLY) != 0;
+            snapshot.backgroundDataSetting = (flags & FLAG_BACKGROUND_DATA) != 0;
+
+            final int typeCount = in.readInt();
+            String[] types = new String[typeCount];
+            ArrayList<ArrayList<String>> typeAuthorities =
+                    new ArrayList<ArrayList<String>>(typeCount);
+            for (int i = 0; i < typeCount; i++) {
+                types[i] = in.readUTF();
+                final int authorityCount = in.readInt();
+                ArrayList<String> authorities = new ArrayList<String>(authorityCount);
+                for (int j = 0; j < authorityCount; j++) {
+                    authorities.add(in.readUTF());
+                }
+                typeAuthorities.add(authorities);
+            }
+
+            final int accountCount = in.readInt();
+            for (int i = 0; i < accountCount; i++) {
+                final int type = in.readInt();
+                final String name = in.readUTF();
+                final int status = in.readByte();
+                snapshot.add(new Account(name, types[type]), typeAuthorities.get(type), status);
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "read " + accountCount + " accounts from snapshot in "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+            sLastWritten = snapshot;
+            return snapshot;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read account list snapshot", e);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Corrupt account list snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot on a background thread, unless it shows the same as the one
+     * last read or written. Must be called on the main thread.
+     */
+    void writeAsync(Context context) {
+        if (sLastWritten != null && sLastWritten.isSameAs(this)) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "account list unchanged, not writing snapshot");
+            }
+            return;
+        }
+        sLastWritten = this;
+        final Context appContext = context.getApplicationContext();
+        sWriter.execute(new Runnable() {
+            public void run() {
+                write(appContext);
+            }
+        });
+    }
+
+    private boolean isSameAs(AccountListSnapshot other) {
+        if (masterSyncAutomatically != other.masterSyncAutomatically
+                || backgroundDataSetting != other.backgroundDataSetting
+                || entries.size() != other.entries.size()) {
+            return false;
+        }
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            Entry entry = entries.get(i);
+            Entry otherEntry = other.entries.get(i);
+            if (entry.status != otherEntry.status
+                    || !entry.account.equals(otherEntry.account)
+                    || (entry.authorities == null
+                            ? otherEntry.authorities != null
+                            : !entry.authorities.equals(otherEntry.authorities))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the snapshot, replacing the previous one only once the new one is complete.
+     */
+    private void write(Context context) {
+        final File file = context.getFileStreamPath(FILE_NAME);
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    context.openFileOutput(temp.getName(), Context.MODE_PRIVATE)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt((masterSyncAutomatically ? FLAG_MASTER_SYNC_AUTOMATICALLY : 0)
+                    | (backgroundDataSetting ? FLAG_BACKGROUND_DATA : 0));
+
+            // authorities are stored once per account type
+            HashMap<String, Integer> typeIndex = new HashMap<String, Integer>();
+            ArrayList<Entry> typeEntries = new ArrayList<Entry>();
+            for (Entry entry : entries) {
+                if (!typeIndex.containsKey(entry.account.type)) {
+                    typeIndex.put(entry.account.type, typeEntries.size());
+                    typeEntries.add(entry);
+                }
+            }
+            out.writeInt(typeEntries.size());
+            for (Entry entry : typeEntries) {
+                out.writeUTF(entry.account.type);
+                if (entry.authorities == null) {
+                    out.writeInt(0);
+                } else {
+                    out.writeInt(entry.authorities.size());
+                    for (String authority : entry.authorities) {
+                        out.writeUTF(authority);
+                    }
+                }
+            }
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeInt(typeIndex.get(entry.account.type));
+                out.writeUTF(entry.account.name);
+                out.writeByte(entry.status);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Couldn't replace account list snapshot");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write account list snapshot", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                temp.delete();
+            }
+        }
+    }
+}
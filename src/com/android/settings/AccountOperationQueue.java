@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.AccountManagerCallback;
+import android.accounts.AccountManagerFuture;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs an AccountManager operation for each item of a list with at most a given number
+ * of them in flight. The next item starts when one finishes, so a slow authenticator
+ * holds up one slot instead of the whole list.
+ *
+ * Must be used from the main thread, where the AccountManager callbacks arrive when no
+ * handler is given.
+ */
+abstract class AccountOperationQueue<T, R> {
+    private static final String TAG = "AccountSettings";
+    private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    interface Listener<T> {
+        void onOperationStarted(int position, T item);
+
+        /**
+         * @param error why the operation failed, empty if the result didn't say, or null
+         *     if it succeeded
+         */
+        void onOperationFinished(int position, T item, String error);
+
+        void onQueueFinished(int succeeded, int failed, long elapsedMillis);
+    }
+
+    private final List<T> mItems;
+    private final int mMaxConcurrent;
+    private Listener<T> mListener;
+    private final SparseArray<AccountManagerFuture<R>> mRunning =
+            new SparseArray<AccountManagerFuture<R>>();
+    private int mNext;
+    private int mSucceeded;
+    private int mFailed;
+    private long mStartTime;
+    private boolean mCanceled;
+
+    AccountOperationQueue(List<T> items, int maxConcurrent, Listener<T> listener) {
+        mItems = items;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mListener = listener;
+    }
+
+    /**
+     * Starts the operation for an item. The callback must be called on the main thread.
+     */
+    protected abstract AccountManagerFuture<R> startOperation(T item,
+            AccountManagerCallback<R> callback);
+
+    /**
+     * Returns whether the result of a completed operation means it succeeded.
+     */
+    protected abstract boolean isSuccess(R result);
+
+    /**
+     * Returns why a completed operation failed, for a result isSuccess() rejected. The
+     * default implementation returns "", no reason.
+     */
+    protected String describeFailure(R result) {
+        return "";
+    }
+
+    /**
+     * Replaces the listener, for a queue that outlives the activity that started it.
+     */
+    void setListener(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        startMore();
+        finishIfDone();
+    }
+
+    /**
+     * Cancels the operations in flight and doesn't start any more. The listener isn't
+     * called after this.
+     */
+    void cancel() {
+        mCanceled = true;
+        for (int i = 0, n = mRunning.size(); i < n; i++) {
+            mRunning.valueAt(i).cancel(true);
+        }
+        mRunning.clear();
+    }
+
+    boolean isFinished() {
+        return mNext == mItems.size() && mRunning.size() == 0;
+    }
+
+    private void startMore() {
+        while (!mCanceled && mRunning.size() < mMaxConcurrent && mNext < mItems.size()) {
+            final int position = mNext++;
+            final T item = mItems.get(position);
+            mListener.onOperationStarted(position, item);
+            mRunning.put(position, startOperation(item, new AccountManagerCallback<R>() {
+                public void run(AccountManagerFuture<R> future) {
+                    onOperationDone(position, future);
+                }
+            }));
+        }
+    }
+
+    private void onOperationDone(int position, AccountManagerFuture<R> future) {
+        if (mCanceled || mRunning.get(position) == null) {
+            return;
+        }
+        mRunning.remove(position);
+        String error = null;
+        try {
+            final R result = future.getResult();
+            if (!isSuccess(result)) {
+                error = describeFailure(result);
+            }
+        } catch (OperationCanceledException e) {
+            error = describe(e);
+        } catch (IOException e) {
+            error = describe(e);
+        } catch (AuthenticatorException e) {
+            error = describe(e);
+        }
+        if (error == null) {
+            mSucceeded++;
+        } else {
+            mFailed++;
+            if (LDEBUG) Log.d(TAG, "operation " + position + " failed: " + error);
+        }
+        mListener.onOperationFinished(position, mItems.get(position), error);
+        startMore();
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (!mCanceled && isFinished()) {
+            mListener.onQueueFinished(mSucceeded, mFailed,
+                    SystemClock.elapsedRealtime() - mStartTime);
+        }
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+}
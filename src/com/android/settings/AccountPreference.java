@@ -16,6 +16,7 @@
 
 package com.android.settings;
 
+import java.text.CollationKey;
 import java.util.ArrayList;
 
 import com.android.providers.subscribedfeeds.R;
@@ -28,6 +29,7 @@ import android.preference.Preference;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 /**
  * AccountPreference is used to display a username, status and provider icon for an account on
@@ -42,8 +44,22 @@ public class AccountPreference extends Preference {
     private Account mAccount;
     private ArrayList<String> mAuthorities;
     private Drawable mProviderIcon;
-    private ImageView mSyncStatusIcon;
-    private ImageView mProviderIconView;
+    private CollationKey mSortKey;
+    private CollationKey mGroupKey;
+
+    /**
+     * Child views of an account_preference row, kept on the row so rebinding it does not
+     * look them up again. The owner is the preference the row was last bound to; list
+     * rows are recycled, so a preference only updates a holder it still owns.
+     */
+    private static class ViewHolder {
+        TextView summary;
+        ImageView providerIcon;
+        ImageView syncStatusIcon;
+        AccountPreference owner;
+    }
+
+    private ViewHolder mViewHolder;
 
     public AccountPreference(Context context, Account account, Drawable icon,
             ArrayList<String> authorities) {
@@ -53,13 +69,12 @@ public class AccountPreference extends Preference {
         mProviderIcon = icon;
         setLayoutResource(R.layout.account_preference);
         setTitle(mAccount.name);
-        setSummary("");
         // Add account info to the intent for AccountSyncSettings
         Intent intent = new Intent("android.settings.ACCOUNT_SYNC_SETTINGS");
         intent.putExtra("account", mAccount);
         setIntent(intent);
         setPersistent(false);
-        setSyncStatus(SYNC_DISABLED);
+        mStatus = SYNC_DISABLED;
     }
 
     public Account getAccount() {
@@ -70,29 +85,95 @@ public class AccountPreference extends Preference {
         return mAuthorities;
     }
 
+    public void setAuthorities(ArrayList<String> authorities) {
+        mAuthorities = authorities;
+    }
+
+    /**
+     * Sets the collation key of the account name, which orders the preference by the
+     * rules of the current locale. See {@link AccountIndex}.
+     */
+    public void setSortKey(CollationKey sortKey) {
+        mSortKey = sortKey;
+    }
+
+    /**
+     * Sets the collation key of the account type's label, which keeps the accounts below
+     * their AccountTypeHeaderPreference.
+     */
+    public void setGroupKey(CollationKey groupKey) {
+        mGroupKey = groupKey;
+    }
+
+    public CollationKey getGroupKey() {
+        return mGroupKey;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
-        setSummary(getSyncStatusMessage(mStatus));
-        mProviderIconView = (ImageView) view.findViewById(R.id.providerIcon);
-        mProviderIconView.setImageDrawable(mProviderIcon);
-        mSyncStatusIcon = (ImageView) view.findViewById(R.id.syncStatusIcon);
-        mSyncStatusIcon.setImageResource(getSyncStatusIcon(mStatus));
+        ViewHolder holder = (ViewHolder) view.getTag(R.id.preference_view_holder);
+        if (holder == null) {
+            holder = new ViewHolder();
+            holder.summary = (TextView) view.findViewById(android.R.id.summary);
+            holder.providerIcon = (ImageView) view.findViewById(R.id.providerIcon);
+            holder.syncStatusIcon = (ImageView) view.findViewById(R.id.syncStatusIcon);
+            view.setTag(R.id.preference_view_holder, holder);
+        }
+        holder.owner = this;
+        mViewHolder = holder;
+        holder.providerIcon.setImageDrawable(mProviderIcon);
+        holder.syncStatusIcon.setImageResource(getSyncStatusIcon(mStatus));
+    }
+
+    /**
+     * The summary always reflects the sync status, so a status change never has to go
+     * through setSummary() and invalidate the whole list.
+     */
+    @Override
+    public CharSequence getSummary() {
+        return getContext().getText(getSyncStatusMessage(mStatus));
+    }
+
+    private ViewHolder getBoundViewHolder() {
+        return mViewHolder != null && mViewHolder.owner == this ? mViewHolder : null;
+    }
+
+    /**
+     * Rebinds only this row instead of invalidating the whole list.
+     */
+    @Override
+    protected void notifyChanged() {
+        if (!AccountPreferenceBase.requestRebind(this)) {
+            super.notifyChanged();
+        }
     }
 
     public void setProviderIcon(Drawable icon) {
+        if (icon == mProviderIcon) {
+            return;
+        }
         mProviderIcon = icon;
-        if (mProviderIconView != null) {
-            mProviderIconView.setImageDrawable(icon);
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            holder.providerIcon.setImageDrawable(icon);
         }
     }
 
     public void setSyncStatus(int status) {
+        if (status == mStatus) {
+            return;
+        }
         mStatus = status;
-        if (mSyncStatusIcon != null) {
-            mSyncStatusIcon.setImageResource(getSyncStatusIcon(status));
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            holder.syncStatusIcon.setImageResource(getSyncStatusIcon(status));
+            holder.summary.setText(getSyncStatusMessage(status));
         }
-        setSummary(getSyncStatusMessage(status));
+    }
+
+    public int getSyncStatus() {
+        return mStatus;
     }
 
     private int getSyncStatusMessage(int status) {
@@ -135,10 +216,25 @@ public class AccountPreference extends Preference {
 
     @Override
     public int compareTo(Preference other) {
+        if (other instanceof AccountTypeHeaderPreference) {
+            return -other.compareTo(this);
+        }
         if (!(other instanceof AccountPreference)) {
             // Put other preference types above us
             return 1;
         }
-        return mAccount.name.compareTo(((AccountPreference) other).mAccount.name);
+        AccountPreference otherAccount = (AccountPreference) other;
+        int group = AccountTypeHeaderPreference.compareGroups(mGroupKey, mAccount.type,
+                otherAccount.mGroupKey, otherAccount.mAccount.type);
+        if (group != 0) {
+            return group;
+        }
+        if (mSortKey != null && otherAccount.mSortKey != null) {
+            int result = mSortKey.compareTo(otherAccount.mSortKey);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return mAccount.name.compareTo(otherAccount.mAccount.name);
     }
 }
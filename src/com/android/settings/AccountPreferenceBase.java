@@ -18,27 +18,39 @@ package com.android.settings;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 
+import com.android.providers.subscribedfeeds.R;
 import com.google.android.collect.Maps;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorDescription;
 import android.accounts.OnAccountsUpdateListener;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncAdapterType;
-import android.content.SyncStatusObserver;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.View;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.EditText;
+import android.widget.ListAdapter;
+import android.widget.ListView;
 
-class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpdateListener {
+class AccountPreferenceBase extends PreferenceActivity
+        implements OnAccountsUpdateListener, SyncStateRepository.SyncStateListener {
     protected static final String TAG = "AccountSettings";
     public static final String AUTHORITIES_FILTER_KEY = "authorities";
     private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);;
@@ -46,12 +58,115 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
             = new HashMap<String, AuthenticatorDescription>();
     protected AuthenticatorDescription[] mAuthDescs;
     private final Handler mHandler = new Handler();
-    private Object mStatusChangeListenerHandle;
+    protected SyncStateRepository mSyncState;
     private HashMap<String, ArrayList<String>> mAccountTypeToAuthorities = null;
+    private HashSet<String> mUserVisibleAuthorities = null;
+    private boolean mRefreshPending;
+    private int mPendingRefreshMask;
+    private int mBatchDepth;
+    private boolean mResumed;
+    /** Repository version shown on screen, or -1 before the first refresh. */
+    private int mShownVersion = -1;
+    private final LinkedHashSet<Preference> mRowsToRebind = new LinkedHashSet<Preference>();
+    /** Open from onCreate() until the first refresh is done, null if auditing is off. */
+    private IpcAuditor.Scope mStartupScope;
+    private EditText mSearchField;
+    private String mSearchQuery = "";
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        mStartupScope = IpcAuditor.beginStartup(this);
+        mSyncState = SyncStateRepository.getInstance(this);
+        // stays registered while paused so the repository keeps its cache and version
+        // up to date, which lets onResume() skip refreshes when nothing changed
+        mSyncState.addSyncStateListener(this);
+    }
+
+    /**
+     * Hooks up the search field of the layout. Subclasses with a search_field in their
+     * layout call this after setContentView() and filter their rows in
+     * onSearchQueryChanged().
+     */
+    protected void setUpSearchField() {
+        mSearchField = (EditText) findViewById(R.id.search_field);
+        mSearchField.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                final String query = s.toString();
+                if (!query.equals(mSearchQuery)) {
+                    mSearchQuery = query;
+                    if (isSearching()) {
+                        // also shows the field again when its text is restored
+                        mSearchField.setVisibility(View.VISIBLE);
+                    }
+                    onSearchQueryChanged(query);
+                }
+            }
+        });
+    }
+
+    protected String getSearchQuery() {
+        return mSearchQuery;
+    }
+
+    /**
+     * Returns true if the search field holds something to search for.
+     */
+    protected boolean isSearching() {
+        return TextUtils.getTrimmedLength(mSearchQuery) > 0;
+    }
+
+    /**
+     * Overload to filter the rows when the text of the search field changes.
+     */
+    protected void onSearchQueryChanged(String query) {
+
+    }
+
+    @Override
+    public boolean onSearchRequested() {
+        if (mSearchField == null) {
+            return super.onSearchRequested();
+        }
+        mSearchField.setVisibility(View.VISIBLE);
+        mSearchField.requestFocus();
+        InputMethodManager imm = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
+        imm.showSoftInput(mSearchField, 0);
+        return true;
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mSearchField != null && mSearchField.getVisibility() == View.VISIBLE) {
+            InputMethodManager imm =
+                    (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
+            imm.hideSoftInputFromWindow(mSearchField.getWindowToken(), 0);
+            mSearchField.setText("");
+            mSearchField.setVisibility(View.GONE);
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    /**
+     * Starts delivering account changes to onAccountsUpdated(). Subclasses that show
+     * accounts call this in onCreate().
+     */
+    protected void listenForAccountUpdates(boolean updateImmediately) {
+        mSyncState.addAccountsListener(this, updateImmediately);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mSyncState.removeAccountsListener(this);
+        mSyncState.removeSyncStateListener(this);
+        super.onDestroy();
     }
 
     /**
@@ -68,6 +183,15 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
 
     }
 
+    /**
+     * Called after a package that provides an authenticator or sync adapter of an account
+     * type shown by the screen was installed, updated or removed. The default
+     * implementation reloads the authenticator descriptions.
+     */
+    protected void onPackagesChanged() {
+        updateAuthDescriptions();
+    }
+
     /**
      * Overload to handle sync state updates.
      */
@@ -75,38 +199,229 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
 
     }
 
+    /**
+     * Overload to update only what an event of the given type can change. The default
+     * implementation updates everything.
+     * @param which the SYNC_OBSERVER_TYPE_* mask of what changed
+     */
+    protected void onSyncStateUpdated(int which) {
+        onSyncStateUpdated();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
-                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
-                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
-                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
-                mSyncStatusObserver);
-        onSyncStateUpdated();
+        mResumed = true;
+        if (mShownVersion < 0) {
+            onSyncStateUpdated();
+        } else if (mShownVersion != mSyncState.getVersion()) {
+            // only what changed while we were in the background
+            final int which = mPendingRefreshMask;
+            mPendingRefreshMask = 0;
+            if (LDEBUG) Log.d(TAG, "refreshing on resume, changed " + which);
+            IpcAuditor.Scope scope = IpcAuditor.beginRefresh(this);
+            onSyncStateUpdated(which);
+            IpcAuditor.endScope(scope);
+        } else if (LDEBUG) {
+            Log.d(TAG, "nothing changed while paused, skipping refresh");
+        }
+        mShownVersion = mSyncState.getVersion();
+        if (mStartupScope != null) {
+            // after the account list that onCreate() asked for has been delivered
+            mHandler.post(mEndStartupRunnable);
+        }
     }
 
+    private final Runnable mEndStartupRunnable = new Runnable() {
+        public void run() {
+            IpcAuditor.endScope(mStartupScope);
+            mStartupScope = null;
+        }
+    };
+
     @Override
     protected void onPause() {
         super.onPause();
-        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mResumed = false;
     }
 
+    private final Runnable mRefreshRunnable = new Runnable() {
+        public void run() {
+            final int which = mPendingRefreshMask;
+            mRefreshPending = false;
+            mPendingRefreshMask = 0;
+            IpcAuditor.Scope scope = IpcAuditor.beginRefresh(AccountPreferenceBase.this);
+            onSyncStateUpdated(which);
+            IpcAuditor.endScope(scope);
+            mShownVersion = mSyncState.getVersion();
+        }
+    };
 
-    private SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
-        public void onStatusChanged(int which) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    onSyncStateUpdated();
+    public void onSyncStateChanged(int which) {
+        if (!mResumed) {
+            // remember what changed, onResume() catches up
+            mPendingRefreshMask |= which;
+            return;
+        }
+        // the repository already dropped the echoes of our own writes
+        requestSyncStateRefresh(which);
+    }
+
+    public void onPackageChanged(String packageName, HashSet<String> changedAccountTypes) {
+        boolean shown = changedAccountTypes == null;
+        if (shown || !changedAccountTypes.isEmpty()) {
+            mAccountTypeToAuthorities = null;
+            mUserVisibleAuthorities = null;
+        }
+        if (!shown) {
+            for (String accountType : changedAccountTypes) {
+                if (isAccountTypeShown(accountType)) {
+                    shown = true;
+                    break;
                 }
-            });
+            }
+        }
+        // a shown type already has its authenticator, so only that package matters
+        for (int i = 0, n = mAuthDescs != null ? mAuthDescs.length : 0; i < n && !shown; i++) {
+            shown = mAuthDescs[i].packageName.equals(packageName)
+                    && isAccountTypeShown(mAuthDescs[i].type);
+        }
+        if (shown) {
+            onPackagesChanged();
+        } else if (LDEBUG) {
+            Log.d(TAG, "ignoring change of package " + packageName);
+        }
+    }
+
+    /**
+     * Returns true if the screen shows something of the account type, so a change of the
+     * packages providing its authenticator or sync adapters needs a reload. The default
+     * implementation returns true for every type.
+     */
+    protected boolean isAccountTypeShown(String accountType) {
+        return true;
+    }
+
+    /**
+     * Tells the base class that the screen already shows the current sync state, so the
+     * first onResume() does not refresh it again.
+     */
+    protected void markSyncStateShown() {
+        mShownVersion = mSyncState.getVersion();
+    }
+
+    /**
+     * Sets the auto-sync flag of an authority. The SETTINGS callback caused by this write
+     * does not refresh the screen, so callers update their own UI right away.
+     */
+    protected void setSyncAutomatically(Account account, String authority, boolean sync) {
+        mSyncState.setSyncAutomatically(account, authority, sync);
+    }
+
+    /**
+     * Sets the master auto-sync flag. As with setSyncAutomatically(), the echo of this
+     * write does not refresh the screen.
+     */
+    protected void setMasterSyncAutomatically(boolean sync) {
+        mSyncState.setMasterSyncAutomatically(sync);
+    }
+
+    /**
+     * Schedules a call to onSyncStateUpdated(int). Requests made while one is already
+     * scheduled, or while a batch update is in progress, are merged into a single refresh
+     * covering all of their types.
+     */
+    protected void requestSyncStateRefresh(int which) {
+        mPendingRefreshMask |= which;
+        if (mBatchDepth == 0 && !mRefreshPending) {
+            mRefreshPending = true;
+            mHandler.post(mRefreshRunnable);
+        }
+    }
+
+    /**
+     * Starts a batch of sync setting changes. Sync state refreshes are held back
+     * until the matching endBatchUpdate().
+     */
+    protected void beginBatchUpdate() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch of sync setting changes and refreshes the sync state once.
+     */
+    protected void endBatchUpdate() {
+        if (--mBatchDepth == 0) {
+            requestSyncStateRefresh(SyncStateRepository.SYNC_STATE_ALL);
+        }
+    }
+
+    /**
+     * Applies a batch of sync setting changes with a single refresh at the end.
+     */
+    protected void applyBatch(SyncSettingsBatch batch) {
+        beginBatchUpdate();
+        try {
+            batch.apply();
+        } finally {
+            endBatchUpdate();
+        }
+    }
+
+    private final Runnable mRebindRunnable = new Runnable() {
+        public void run() {
+            final ListView list = getListView();
+            final ListAdapter adapter = list.getAdapter();
+            if (adapter != null) {
+                final int first = list.getFirstVisiblePosition();
+                for (int i = 0, n = list.getChildCount(); i < n; i++) {
+                    final int position = first + i;
+                    if (position >= adapter.getCount()) {
+                        break;
+                    }
+                    final Object item = adapter.getItem(position);
+                    if (mRowsToRebind.contains(item)) {
+                        // binds into the row's existing view, nothing else is touched
+                        ((Preference) item).getView(list.getChildAt(i), list);
+                    }
+                }
+            }
+            if (LDEBUG) Log.d(TAG, "rebound rows of " + mRowsToRebind.size() + " preferences");
+            mRowsToRebind.clear();
         }
     };
 
+    /**
+     * Rebinds the visible row of a preference in place instead of rebuilding the whole
+     * list. Requests made in the same pass are merged so each row is rebound at most
+     * once. Rows that are not on screen pick up the new state when they are next bound.
+     */
+    void rebindPreference(Preference preference) {
+        if (mRowsToRebind.isEmpty()) {
+            mHandler.post(mRebindRunnable);
+        }
+        mRowsToRebind.add(preference);
+    }
+
+    /**
+     * Asks the screen showing the preference to rebind its row.
+     * @return false if the preference is not shown by one of the account screens, in which
+     *     case the caller falls back to notifyChanged()
+     */
+    static boolean requestRebind(Preference preference) {
+        final Context context = preference.getContext();
+        if (context instanceof AccountPreferenceBase) {
+            ((AccountPreferenceBase) context).rebindPreference(preference);
+            return true;
+        }
+        return false;
+    }
+
     public ArrayList<String> getAuthoritiesForAccountType(String type) {
         if (mAccountTypeToAuthorities == null) {
             mAccountTypeToAuthorities = Maps.newHashMap();
-            SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+            mUserVisibleAuthorities = new HashSet<String>();
+            SyncAdapterType[] syncAdapters = mSyncState.getSyncAdapterTypes();
             for (int i = 0, n = syncAdapters.length; i < n; i++) {
                 final SyncAdapterType sa = syncAdapters[i];
                 ArrayList<String> authorities = mAccountTypeToAuthorities.get(sa.accountType);
@@ -119,25 +434,45 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
                             + sa.accountType);
                 }
                 authorities.add(sa.authority);
+                if (sa.isUserVisible()) {
+                    mUserVisibleAuthorities.add(sa.authority);
+                }
             }
         }
         return mAccountTypeToAuthorities.get(type);
     }
 
+    /**
+     * Returns the authorities of the account type whose sync adapters are shown to the
+     * user and that are syncable for the given account.
+     */
+    protected ArrayList<String> getSyncableAuthorities(Account account) {
+        ArrayList<String> result = new ArrayList<String>();
+        ArrayList<String> authorities = getAuthoritiesForAccountType(account.type);
+        if (authorities != null) {
+            for (String authority : authorities) {
+                if (mUserVisibleAuthorities.contains(authority)
+                        && mSyncState.getAuthorityState(account, authority).syncable > 0) {
+                    result.add(authority);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Gets an icon associated with a particular account type. If none found, return null.
+     * Icons come from AuthenticatorMetadataCache, which only opens the authenticator's
+     * package when the cached copy is missing or out of date.
      * @param accountType the type of account
      * @return a drawable for the icon or null if one cannot be found.
      */
     protected Drawable getDrawableForType(final String accountType) {
         Drawable icon = null;
-        if (mTypeToAuthDescription.containsKey(accountType)) {
-            try {
-                AuthenticatorDescription desc = (AuthenticatorDescription)
-                        mTypeToAuthDescription.get(accountType);
-                Context authContext = createPackageContext(desc.packageName, 0);
-                icon = authContext.getResources().getDrawable(desc.iconId);
-            } catch (PackageManager.NameNotFoundException e) {
+        AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+        if (desc != null) {
+            icon = AuthenticatorMetadataCache.getInstance(this).getIcon(desc);
+            if (icon == null) {
                 // TODO: place holder icon for missing account icons?
                 Log.w(TAG, "No icon for account type " + accountType);
             }
@@ -152,21 +487,20 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
      */
     protected CharSequence getLabelForType(final String accountType) {
         CharSequence label = null;
-        if (mTypeToAuthDescription.containsKey(accountType)) {
-             try {
-                 AuthenticatorDescription desc = (AuthenticatorDescription)
-                         mTypeToAuthDescription.get(accountType);
-                 Context authContext = createPackageContext(desc.packageName, 0);
-                 label = authContext.getResources().getText(desc.labelId);
-             } catch (PackageManager.NameNotFoundException e) {
-                 Log.w(TAG, "No label for account type " + ", type " + accountType);
-             }
+        AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+        if (desc != null) {
+            label = AuthenticatorMetadataCache.getInstance(this).getLabel(desc);
+            if (label == null) {
+                Log.w(TAG, "No label for account type " + ", type " + accountType);
+            }
         }
         return label;
     }
 
     /**
      * Gets the preferences.xml file associated with a particular account type.
+     * The structure is cached per authenticator version, so only the first account of a
+     * type pays for parsing the XML.
      * @param accountType the type of account
      * @return a PreferenceScreen inflated from accountPreferenceId.
      */
@@ -177,9 +511,22 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
             try {
                 desc = (AuthenticatorDescription) mTypeToAuthDescription.get(accountType);
                 if (desc != null && desc.accountPreferencesId != 0) {
-                    Context authContext = createPackageContext(desc.packageName, 0);
-                    prefs = getPreferenceManager().inflateFromResource(authContext,
-                            desc.accountPreferencesId, getPreferenceScreen());
+                    final PreferenceManager manager = getPreferenceManager();
+                    final String key = AuthenticatorPreferenceCache.getKey(this, desc);
+                    prefs = getPreferenceScreen();
+                    if (AuthenticatorPreferenceCache.addPreferences(key, manager, this, prefs)) {
+                        if (LDEBUG) Log.d(TAG, "reused cached preferences of " + key);
+                    } else {
+                        final int start = prefs != null ? prefs.getPreferenceCount() : 0;
+                        final long ipcStart = IpcAuditor.begin();
+                        Context authContext = createPackageContext(desc.packageName, 0);
+                        IpcAuditor.end("Context.createPackageContext", ipcStart);
+                        prefs = manager.inflateFromResource(authContext,
+                                desc.accountPreferencesId, prefs);
+                        if (!AuthenticatorPreferenceCache.contains(key)) {
+                            AuthenticatorPreferenceCache.put(key, manager, this, prefs, start);
+                        }
+                    }
                 }
             } catch (PackageManager.NameNotFoundException e) {
                 Log.w(TAG, "Couldn't load preferences.xml file from " + desc.packageName);
@@ -193,7 +540,9 @@ class AccountPreferenceBase extends PreferenceActivity implements OnAccountsUpda
      * and update any UI that depends on AuthenticatorDescriptions in onAuthDescriptionsUpdated().
      */
     protected void updateAuthDescriptions() {
+        final long start = IpcAuditor.begin();
         mAuthDescs = AccountManager.get(this).getAuthenticatorTypes();
+        IpcAuditor.end("AccountManager.getAuthenticatorTypes", start);
         for (int i = 0; i < mAuthDescs.length; i++) {
             mTypeToAuthDescription.put(mAuthDescs[i].type, mAuthDescs[i]);
         }
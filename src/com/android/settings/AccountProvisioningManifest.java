@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * The accounts to add in a provisioning batch of AddAccountSettings. The list is read
+ * from a private file of the app, so only whoever can write there (the device setup
+ * tools) decides what gets added.
+ *
+ * One account per line, fields separated by tabs:
+ * <pre>
+ *   account type [TAB key=value]...
+ * </pre>
+ * The key=value pairs are passed to the authenticator as the addAccount() options. The
+ * "name" option, if present, also labels the account in the progress list. Empty lines
+ * and lines starting with '#' are skipped.
+ */
+class AccountProvisioningManifest {
+    static final String FILE_NAME = "account_provisioning";
+    private static final String NAME_OPTION = "name";
+
+    static class Entry {
+        final String accountType;
+        final Bundle options;
+
+        Entry(String accountType, Bundle options) {
+            this.accountType = accountType;
+            this.options = options;
+        }
+
+        /**
+         * Returns what the progress list shows for the entry.
+         */
+        String getLabel() {
+            final String name = options.getString(NAME_OPTION);
+            return name != null ? name + " (" + accountType + ")" : accountType;
+        }
+    }
+
+    /**
+     * Reads the manifest.
+     * @throws IOException if it is missing or malformed, with the line in the message
+     */
+    static ArrayList<Entry> read(Context context) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                context.openFileInput(FILE_NAME), "UTF-8"));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                final String accountType = fields[0].trim();
+                if (accountType.length() == 0) {
+                    throw new IOException("line " + lineNumber + ": no account type");
+                }
+                Bundle options = new Bundle();
+                for (int i = 1; i < fields.length; i++) {
+                    final int separator = fields[i].indexOf('=');
+                    if (separator <= 0) {
+                        throw new IOException("line " + lineNumber + ": expected key=value, got "
+                                + fields[i]);
+                    }
+                    options.putString(fields[i].substring(0, separator),
+                            fields[i].substring(separator + 1));
+                }
+                entries.add(new Entry(accountType, options));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
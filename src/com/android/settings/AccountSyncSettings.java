@@ -28,19 +28,18 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.SyncInfo;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SyncStatusInfo;
 import android.content.SyncAdapterType;
-import android.content.pm.ProviderInfo;
-import android.net.ConnectivityManager;
 import android.os.Bundle;
-import android.text.TextUtils;
+import android.os.AsyncTask;
 import android.text.format.DateFormat;
+import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -49,19 +48,30 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 public class AccountSyncSettings extends AccountPreferenceBase implements OnClickListener {
     private static final String ACCOUNT_KEY = "account";
     private static final String TAG = "AccountSettings";
     private static final String CHANGE_PASSWORD_KEY = "changePassword";
+    private static final String SYNC_OPTIONS_CATEGORY_KEY = "syncOptionsCategory";
+    private static final String SYNC_SCHEDULE_KEY = "syncSchedule";
+    private static final String SYNC_UNMETERED_ONLY_KEY = "syncUnmeteredOnly";
     private static final int MENU_SYNC_NOW_ID = Menu.FIRST;
     private static final int MENU_SYNC_CANCEL_ID = Menu.FIRST + 1;
+    private static final int MENU_ENABLE_ALL_ID = Menu.FIRST + 2;
+    private static final int MENU_DISABLE_ALL_ID = Menu.FIRST + 3;
+    private static final int MENU_SEARCH_ID = Menu.FIRST + 4;
+    private static final int MENU_SAVE_PROFILE_ID = Menu.FIRST + 5;
     private static final int REALLY_REMOVE_DIALOG = 100;
     private static final int FAILED_REMOVAL_DIALOG = 101;
     private static final int CANT_DO_ONETIME_SYNC_DIALOG = 102;
@@ -74,6 +84,12 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
     private java.text.DateFormat mDateFormat;
     private java.text.DateFormat mTimeFormat;
     private Preference mAuthenticatorPreferences;
+    private ListPreference mSyncSchedule;
+    private CheckBoxPreference mUnmeteredOnlyCheckBox;
+    private PreferenceCategory mSyncOptionsCategory;
+    // Top level preferences from account_sync_settings, inflated once and re-added below
+    // the authenticator's preferences
+    private ArrayList<Preference> mOwnPreferences = new ArrayList<Preference>();
     private Account mAccount;
     // List of all accounts, updated when accounts are added/removed
     // We need to re-scan the accounts on sync events, in case sync state changes.
@@ -82,6 +98,21 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
     private ArrayList<SyncStateCheckBoxPreference> mCheckBoxes =
                 new ArrayList<SyncStateCheckBoxPreference>();
     private ArrayList<String> mInvisibleAdapters = Lists.newArrayList();
+    private ReconcileTask mReconcileTask;
+    // provider labels of the rows in mCheckBoxes
+    private final PrefixIndex<SyncStateCheckBoxPreference> mSearchIndex =
+            new PrefixIndex<SyncStateCheckBoxPreference>();
+
+    private Preference.OnPreferenceChangeListener mSyncScheduleListener =
+            new Preference.OnPreferenceChangeListener() {
+        public boolean onPreferenceChange(Preference preference, Object newValue) {
+            long period = Long.parseLong((String) newValue);
+            PeriodicSyncAligner.align(mAccount, getSyncScheduleAuthorities(), period);
+            updateSyncSchedule();
+            // updateSyncSchedule() already reflects the new value
+            return false;
+        }
+    };
 
     public void onClick(View v) {
         if (v == mRemoveAccountButton) {
@@ -100,6 +131,7 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                 .setPositiveButton(R.string.remove_account_label,
                         new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
+                        final long start = IpcAuditor.begin();
                         AccountManager.get(AccountSyncSettings.this).removeAccount(mAccount,
                                 new AccountManagerCallback<Boolean>() {
                             public void run(AccountManagerFuture<Boolean> future) {
@@ -122,6 +154,7 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                                 }
                             }
                         }, null);
+                        IpcAuditor.end("AccountManager.removeAccount", start);
                     }
                 })
                 .create();
@@ -147,6 +180,15 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
 
         setContentView(R.layout.account_sync_screen);
         addPreferencesFromResource(R.xml.account_sync_settings);
+        setUpSearchField();
+        PreferenceScreen screen = getPreferenceScreen();
+        for (int i = 0, n = screen.getPreferenceCount(); i < n; i++) {
+            mOwnPreferences.add(screen.getPreference(i));
+        }
+        mSyncOptionsCategory = (PreferenceCategory) findPreference(SYNC_OPTIONS_CATEGORY_KEY);
+        mSyncSchedule = (ListPreference) findPreference(SYNC_SCHEDULE_KEY);
+        mSyncSchedule.setOnPreferenceChangeListener(mSyncScheduleListener);
+        mUnmeteredOnlyCheckBox = (CheckBoxPreference) findPreference(SYNC_UNMETERED_ONLY_KEY);
 
         mErrorInfoView = (TextView) findViewById(R.id.sync_settings_error_info);
         mErrorInfoView.setVisibility(View.GONE);
@@ -170,33 +212,205 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
             mUserId.setText(mAccount.name);
             mProviderId.setText(mAccount.type);
         }
-        AccountManager.get(this).addOnAccountsUpdatedListener(this, null, false);
+        listenForAccountUpdates(false);
         updateAuthDescriptions();
-        onAccountsUpdated(AccountManager.get(this).getAccounts());
+
+        AccountSyncSnapshot snapshot = (AccountSyncSnapshot)
+                getIntent().getParcelableExtra(AccountSyncSnapshot.EXTRA_KEY);
+        // a snapshot is only fresh on the launch that brought it
+        if (icicle == null && snapshot != null && snapshot.account.equals(mAccount)) {
+            showSnapshot(snapshot);
+            // The rows stay as they are until the reconcile task has the live state; if
+            // the repository saw no event since the snapshot was taken, they already are.
+            // Either way the first onResume() doesn't need to refresh them.
+            final boolean current = snapshot.version == mSyncState.getVersion();
+            if (LDEBUG) Log.d(TAG, "snapshot is " + (current ? "current" : "stale"));
+            markSyncStateShown();
+            mReconcileTask = new ReconcileTask(snapshot, !current);
+            mReconcileTask.execute();
+        } else {
+            onAccountsUpdated(mSyncState.getAccounts());
+        }
     }
 
     @Override
     protected void onDestroy() {
+        if (mReconcileTask != null) {
+            mReconcileTask.cancel(false);
+        }
         super.onDestroy();
-        AccountManager.get(this).removeOnAccountsUpdatedListener(this);
     }
 
-    private void addSyncStateCheckBox(Account account, String authority) {
+    /**
+     * Checks the rows drawn from a snapshot against the live state off the main thread,
+     * and loads what the snapshot doesn't have: the invisible sync adapters for sync now
+     * and the periodic sync schedule.
+     */
+    private class ReconcileTask extends AsyncTask<Void, Void, AccountSyncSnapshot> {
+        private final Context mContext = getApplicationContext();
+        private final AccountSyncSnapshot mSnapshot;
+        private final boolean mReloadRows;
+        private final int mVersion = mSyncState.getVersion();
+        private final ArrayList<String> mInvisible = new ArrayList<String>();
+        private PeriodicSyncAligner.Schedule mSchedule;
+
+        ReconcileTask(AccountSyncSnapshot snapshot, boolean reloadRows) {
+            mSnapshot = snapshot;
+            mReloadRows = reloadRows;
+        }
+
+        @Override
+        protected AccountSyncSnapshot doInBackground(Void... params) {
+            AccountSyncSnapshot live = null;
+            List<String> authorities;
+            if (mReloadRows) {
+                live = AccountSyncSnapshot.load(mContext, mVersion, mAccount, mSnapshot,
+                        mInvisible);
+                authorities = Arrays.asList(live.authorities);
+            } else {
+                final long start = IpcAuditor.begin();
+                final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+                IpcAuditor.end("ContentResolver.getSyncAdapterTypes", start);
+                for (SyncAdapterType sa : syncAdapters) {
+                    if (!sa.isUserVisible()) {
+                        mInvisible.add(sa.authority);
+                    }
+                }
+                authorities = Arrays.asList(mSnapshot.authorities);
+            }
+            mSchedule = PeriodicSyncAligner.getSchedule(mAccount, authorities);
+            return live;
+        }
+
+        @Override
+        protected void onPostExecute(AccountSyncSnapshot live) {
+            mReconcileTask = null;
+            if (isFinishing()) {
+                return;
+            }
+            if (live != null && !live.hasSameRows(mSnapshot)) {
+                // authorities became syncable or unsyncable, rebuild the rows
+                onAccountsUpdated(mSyncState.getAccounts());
+                return;
+            }
+            mInvisibleAdapters.clear();
+            mInvisibleAdapters.addAll(mInvisible);
+            if (mSyncState.getVersion() != mVersion) {
+                // something changed while loading; the loaded state may be older than
+                // what a refresh since then showed
+                requestSyncStateRefresh(SyncStateRepository.SYNC_STATE_ALL);
+            } else if (live != null) {
+                bindSnapshot(live);
+            }
+            if (mSyncSchedule != null) {
+                showSyncSchedule(mSchedule);
+            }
+        }
+    }
+
+    /**
+     * Shows the sync rows from the state ManageAccountsSettings passed along, without
+     * asking the sync manager or the package manager for anything.
+     */
+    private void showSnapshot(AccountSyncSnapshot snapshot) {
+        mAccounts = new Account[] { mAccount };
+        for (int i = 0, n = snapshot.authorities.length; i < n; i++) {
+            addSyncStateCheckBox(mAccount, snapshot.authorities[i],
+                    snapshot.providerLabels[i]);
+        }
+        bindSnapshot(snapshot);
+    }
+
+    /**
+     * Sets the state of the sync rows from a snapshot with the same rows.
+     */
+    private void bindSnapshot(AccountSyncSnapshot snapshot) {
+        final boolean oneTimeSyncMode =
+                !snapshot.masterSyncAutomatically || !snapshot.backgroundDataSetting;
+        Date date = new Date();
+        boolean syncIsFailing = false;
+        for (int i = 0, n = snapshot.authorities.length; i < n; i++) {
+            SyncStateCheckBoxPreference syncPref = mCheckBoxes.get(i);
+            final boolean syncEnabled =
+                    snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_SYNC_AUTOMATICALLY);
+            final boolean pending = snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_PENDING);
+            final boolean active = snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_ACTIVE);
+            final boolean initialSync = snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_INITIALIZE);
+            final boolean deferred = snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_DEFERRED);
+            final boolean lastSyncFailed =
+                    syncEnabled && snapshot.hasFlag(i, AccountSyncSnapshot.FLAG_FAILED);
+            if (lastSyncFailed && !active && !pending) {
+                syncIsFailing = true;
+            }
+            syncPref.setActive(active && !initialSync);
+            setSyncSummary(syncPref, deferred, snapshot.lastSuccessTimes[i], date);
+            syncPref.setPending(pending && !initialSync);
+            syncPref.setDeferred(deferred);
+            syncPref.setFailed(lastSyncFailed);
+            syncPref.setOneTimeSyncMode(oneTimeSyncMode);
+            syncPref.setChecked(oneTimeSyncMode || syncEnabled);
+        }
+        mErrorInfoView.setVisibility(syncIsFailing ? View.VISIBLE : View.GONE);
+    }
+
+    protected Account getAccount() {
+        return mAccount;
+    }
+
+    private SyncStateCheckBoxPreference addSyncStateCheckBox(Account account,
+            String authority) {
+        return addSyncStateCheckBox(account, authority, mSyncState.getProviderLabel(authority));
+    }
+
+    private SyncStateCheckBoxPreference addSyncStateCheckBox(Account account, String authority,
+            CharSequence providerLabel) {
         SyncStateCheckBoxPreference item =
                 new SyncStateCheckBoxPreference(this, account, authority);
         item.setPersistent(false);
-        final ProviderInfo providerInfo = getPackageManager().resolveContentProvider(authority, 0);
-        CharSequence providerLabel = providerInfo != null
-                ? providerInfo.loadLabel(getPackageManager()) : null;
-        if (TextUtils.isEmpty(providerLabel)) {
-            Log.e(TAG, "Provider needs a label for authority '" + authority + "'");
-            providerLabel = authority;
-        }
         String title = getString(R.string.sync_item_title, providerLabel);
         item.setTitle(title);
         item.setKey(authority);
         getPreferenceScreen().addPreference(item);
         mCheckBoxes.add(item);
+        mSearchIndex.put(item, providerLabel);
+        return item;
+    }
+
+    @Override
+    protected void onSearchQueryChanged(String query) {
+        applySearch();
+    }
+
+    /**
+     * Shows only the sync rows whose provider matches the search query.
+     */
+    private void applySearch() {
+        HashSet<SyncStateCheckBoxPreference> matches =
+                isSearching() ? mSearchIndex.query(getSearchQuery()) : null;
+        PreferenceScreen screen = getPreferenceScreen();
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            SyncStateCheckBoxPreference syncPref = mCheckBoxes.get(i);
+            if (matches == null || matches.contains(syncPref)) {
+                // rows keep the order they got when first added
+                screen.addPreference(syncPref);
+            } else {
+                screen.removePreference(syncPref);
+            }
+        }
+    }
+
+    private void setSyncSummary(SyncStateCheckBoxPreference syncPref, boolean deferred,
+            long successEndTime, Date date) {
+        if (deferred) {
+            syncPref.setSummary(R.string.sync_waiting_for_unmetered);
+        } else if (successEndTime != 0) {
+            date.setTime(successEndTime);
+            final String timeString = mDateFormat.format(date) + " "
+                    + mTimeFormat.format(date);
+            syncPref.setSummary(timeString);
+        } else {
+            syncPref.setSummary("");
+        }
     }
 
     @Override
@@ -206,13 +420,19 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                 .setIcon(com.android.internal.R.drawable.ic_menu_refresh);
         menu.add(0, MENU_SYNC_CANCEL_ID, 0, getString(R.string.sync_menu_sync_cancel))
                 .setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+        menu.add(0, MENU_ENABLE_ALL_ID, 0, getString(R.string.sync_menu_enable_all));
+        menu.add(0, MENU_DISABLE_ALL_ID, 0, getString(R.string.sync_menu_disable_all));
+        menu.add(0, MENU_SEARCH_ID, 0, getString(R.string.search_menu))
+                .setIcon(android.R.drawable.ic_menu_search);
+        menu.add(0, MENU_SAVE_PROFILE_ID, 0, getString(R.string.sync_profile_save))
+                .setIcon(android.R.drawable.ic_menu_save);
         return true;
     }
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        boolean syncActive = ContentResolver.getCurrentSync() != null;
+        boolean syncActive = !mSyncState.getActiveSyncs().isEmpty();
         menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
         menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
         return true;
@@ -227,6 +447,18 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
             case MENU_SYNC_CANCEL_ID:
                 cancelSyncForEnabledProviders();
                 return true;
+            case MENU_ENABLE_ALL_ID:
+                setSyncForAllProviders(true);
+                return true;
+            case MENU_DISABLE_ALL_ID:
+                setSyncForAllProviders(false);
+                return true;
+            case MENU_SEARCH_ID:
+                onSearchRequested();
+                return true;
+            case MENU_SAVE_PROFILE_ID:
+                saveSyncProfile();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -237,7 +469,8 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
             SyncStateCheckBoxPreference syncPref = (SyncStateCheckBoxPreference) preference;
             String authority = syncPref.getAuthority();
             Account account = syncPref.getAccount();
-            boolean syncAutomatically = ContentResolver.getSyncAutomatically(account, authority);
+            boolean syncAutomatically =
+                    mSyncState.getAuthorityState(account, authority).syncAutomatically;
             if (syncPref.isOneTimeSyncMode()) {
                 requestOrCancelSync(account, authority, true);
             } else {
@@ -245,21 +478,51 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                 boolean oldSyncState = syncAutomatically;
                 if (syncOn != oldSyncState) {
                     // if we're enabling sync, this will request a sync as well
-                    ContentResolver.setSyncAutomatically(account, authority, syncOn);
+                    setSyncAutomatically(account, authority, syncOn);
                     // if the master sync switch is off, the request above will
                     // get dropped.  when the user clicks on this toggle,
                     // we want to force the sync, however.
-                    if (!ContentResolver.getMasterSyncAutomatically() || !syncOn) {
+                    if (!mSyncState.getMasterSyncAutomatically() || !syncOn) {
                         requestOrCancelSync(account, authority, syncOn);
+                    } else if (UnmeteredSyncQueue.shouldDefer(this, account)) {
+                        SyncSettingsBatch.deferRequestedSync(this, account, authority);
+                        requestSyncStateRefresh(ContentResolver.SYNC_OBSERVER_TYPE_STATUS);
                     }
                 }
             }
             return true;
+        } else if (preference == mUnmeteredOnlyCheckBox) {
+            UnmeteredSyncQueue.setUnmeteredOnly(this, mAccount,
+                    mUnmeteredOnlyCheckBox.isChecked());
+            onSyncStateUpdated();
+            return true;
         } else {
             return super.onPreferenceTreeClick(preferences, preference);
         }
     }
 
+    /**
+     * Saves the sync flags of the rows as the profile of the account's type, which the
+     * account list can then apply to every account of the type.
+     */
+    private void saveSyncProfile() {
+        SyncProfile profile = SyncProfile.capture(mSyncState, mAccount,
+                getSyncScheduleAuthorities());
+        CharSequence label = getLabelForType(mAccount.type);
+        Toast.makeText(this, profile.save(this)
+                ? getString(R.string.sync_profile_saved, label != null ? label : mAccount.type)
+                : getString(R.string.sync_profile_not_saved), Toast.LENGTH_SHORT).show();
+    }
+
+    private void setSyncForAllProviders(boolean syncOn) {
+        SyncSettingsBatch batch = new SyncSettingsBatch(this);
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            SyncStateCheckBoxPreference syncPref = mCheckBoxes.get(i);
+            batch.setSyncAutomatically(syncPref.getAccount(), syncPref.getAuthority(), syncOn);
+        }
+        applyBatch(batch);
+    }
+
     private void startSyncForEnabledProviders() {
         requestOrCancelSyncForEnabledProviders(true /* start them */);
     }
@@ -291,24 +554,40 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
     }
 
     private void requestOrCancelSync(Account account, String authority, boolean flag) {
-        if (flag) {
-            Bundle extras = new Bundle();
-            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-            ContentResolver.requestSync(account, authority, extras);
-        } else {
-            ContentResolver.cancelSync(account, authority);
+        SyncSettingsBatch.requestOrCancelSync(this, account, authority, flag);
+        if (flag && UnmeteredSyncQueue.isQueued(this, account, authority)) {
+            // no sync status event will tell us about a deferred request
+            requestSyncStateRefresh(ContentResolver.SYNC_OBSERVER_TYPE_STATUS);
         }
     }
 
     @Override
     protected void onSyncStateUpdated() {
+        onSyncStateUpdated(SyncStateRepository.SYNC_STATE_ALL);
+    }
+
+    /**
+     * Updates the sync rows. Only the parts of each row that an event of the given type
+     * can change are touched: the spinner for ACTIVE, the pending, failed and last sync
+     * fields for STATUS, and the checkboxes for SETTINGS.
+     */
+    @Override
+    protected void onSyncStateUpdated(int which) {
+        boolean active = (which & ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE) != 0;
+        boolean status = (which & ContentResolver.SYNC_OBSERVER_TYPE_STATUS) != 0;
+        boolean settings = (which & ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS) != 0;
+
+        // Authorities may have become syncable or unsyncable. New rows need everything.
+        if (settings && updateAccountCheckboxes(mAccounts)) {
+            active = status = true;
+        }
+
         // iterate over all the preferences, setting the state properly for each
         Date date = new Date();
-        SyncInfo currentSync = ContentResolver.getCurrentSync();
         boolean syncIsFailing = false;
-
-        // Refresh the sync status checkboxes - some syncs may have become active.
-        updateAccountCheckboxes(mAccounts);
+        final boolean masterSyncAutomatically = mSyncState.getMasterSyncAutomatically();
+        final boolean backgroundDataEnabled = mSyncState.getBackgroundDataSetting();
+        final boolean oneTimeSyncMode = !masterSyncAutomatically || !backgroundDataEnabled;
 
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
@@ -320,20 +599,16 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
             String authority = syncPref.getAuthority();
             Account account = syncPref.getAccount();
 
-            SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
-            boolean syncEnabled = ContentResolver.getSyncAutomatically(account, authority);
-            boolean authorityIsPending = status == null ? false : status.pending;
-            boolean initialSync = status == null ? false : status.initialize;
-
-            boolean activelySyncing = currentSync != null
-                    && new Account(currentSync.account.name, currentSync.account.type).equals(account)
-                    && currentSync.authority.equals(authority);
-            boolean lastSyncFailed = status != null
-                    && status.lastFailureTime != 0
-                    && status.getLastFailureMesgAsInt(0)
-                       != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
-            if (!syncEnabled) lastSyncFailed = false;
-            if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
+            SyncStateRepository.AuthorityState state =
+                    mSyncState.getAuthorityState(account, authority);
+            boolean syncEnabled = state.syncAutomatically;
+            boolean authorityIsPending = state.pending;
+            boolean initialSync = state.initialize;
+            int syncState = state.syncable;
+
+            boolean activelySyncing = mSyncState.isActive(account, authority);
+            boolean lastSyncFailed = syncEnabled && state.isLastSyncFailed();
+            if (syncEnabled && state.isFailing(activelySyncing)) {
                 syncIsFailing = true;
             }
             if (LDEBUG) {
@@ -341,30 +616,28 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                         " active = " + activelySyncing + " pend =" +  authorityIsPending);
             }
 
-            final long successEndTime = (status == null) ? 0 : status.lastSuccessTime;
-            if (successEndTime != 0) {
-                date.setTime(successEndTime);
-                final String timeString = mDateFormat.format(date) + " "
-                        + mTimeFormat.format(date);
-                syncPref.setSummary(timeString);
-            } else {
-                syncPref.setSummary("");
+            if (active) {
+                syncPref.setActive(activelySyncing && (syncState >= 0) &&
+                        !initialSync);
             }
-            int syncState = ContentResolver.getIsSyncable(account, authority);
 
-            syncPref.setActive(activelySyncing && (syncState >= 0) &&
-                    !initialSync);
-            syncPref.setPending(authorityIsPending && (syncState >= 0) &&
-                    !initialSync);
+            if (status) {
+                final boolean deferred = UnmeteredSyncQueue.isQueued(this, account, authority);
+                setSyncSummary(syncPref, deferred, state.lastSuccessTime, date);
+                syncPref.setPending(authorityIsPending && (syncState >= 0) &&
+                        !initialSync);
+                syncPref.setDeferred(deferred);
+            }
 
-            syncPref.setFailed(lastSyncFailed);
-            ConnectivityManager connManager =
-                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            final boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
-            final boolean backgroundDataEnabled = connManager.getBackgroundDataSetting();
-            final boolean oneTimeSyncMode = !masterSyncAutomatically || !backgroundDataEnabled;
-            syncPref.setOneTimeSyncMode(oneTimeSyncMode);
-            syncPref.setChecked(oneTimeSyncMode || syncEnabled);
+            if (status || settings) {
+                syncPref.setFailed(lastSyncFailed);
+            }
+
+            if (settings) {
+                syncPref.setOneTimeSyncMode(oneTimeSyncMode);
+                syncPref.setChecked(state.isShownChecked(masterSyncAutomatically,
+                        backgroundDataEnabled));
+            }
         }
         mErrorInfoView.setVisibility(syncIsFailing ? View.VISIBLE : View.GONE);
     }
@@ -373,14 +646,64 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
     public void onAccountsUpdated(Account[] accounts) {
         super.onAccountsUpdated(accounts);
         mAccounts = accounts;
-        updateAccountCheckboxes(accounts);
         onSyncStateUpdated();
+        updateSyncSchedule();
     }
 
-    private void updateAccountCheckboxes(Account[] accounts) {
+    private List<String> getSyncScheduleAuthorities() {
+        ArrayList<String> authorities = new ArrayList<String>();
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            authorities.add(mCheckBoxes.get(i).getAuthority());
+        }
+        return authorities;
+    }
+
+    /**
+     * Shows the periodic sync schedule that results from the adapters' periodic syncs.
+     */
+    private void updateSyncSchedule() {
+        if (mSyncSchedule == null || mAccount == null) {
+            return;
+        }
+        showSyncSchedule(PeriodicSyncAligner.getSchedule(mAccount,
+                getSyncScheduleAuthorities()));
+    }
+
+    private void showSyncSchedule(PeriodicSyncAligner.Schedule schedule) {
+        // aligning only moves existing periodic syncs
+        mSyncSchedule.setEnabled(schedule.scheduledCount > 0);
+        if (schedule.alignedPeriod != 0) {
+            String value = Long.toString(schedule.alignedPeriod);
+            mSyncSchedule.setValue(value);
+            CharSequence periodLabel = mSyncSchedule.findIndexOfValue(value) >= 0
+                    ? mSyncSchedule.getEntry()
+                    : getString(R.string.sync_schedule_minutes, schedule.alignedPeriod / 60);
+            String summary = getString(R.string.sync_schedule_aligned, periodLabel,
+                    schedule.scheduledCount);
+            if (schedule.nextWakeupTime != 0) {
+                Date date = new Date(Math.max(schedule.nextWakeupTime,
+                        System.currentTimeMillis()));
+                summary += getString(R.string.sync_schedule_next, mTimeFormat.format(date));
+            }
+            mSyncSchedule.setSummary(summary);
+        } else if (schedule.wakeupCount > 0) {
+            mSyncSchedule.setValue(null);
+            mSyncSchedule.setSummary(getString(R.string.sync_schedule_unaligned,
+                    schedule.wakeupCount));
+        } else {
+            mSyncSchedule.setValue(null);
+            mSyncSchedule.setSummary(R.string.sync_schedule_none);
+        }
+    }
+
+    /**
+     * Makes sure there is a row for every syncable authority.
+     * @return true if the rows had to be rebuilt
+     */
+    private boolean updateAccountCheckboxes(Account[] accounts) {
         mInvisibleAdapters.clear();
 
-        SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+        SyncAdapterType[] syncAdapters = mSyncState.getSyncAdapterTypes();
         HashMap<String, ArrayList<String>> accountTypeToAuthorities =
             Maps.newHashMap();
         for (int i = 0, n = syncAdapters.length; i < n; i++) {
@@ -403,11 +726,7 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
             }
         }
 
-        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
-            getPreferenceScreen().removePreference(mCheckBoxes.get(i));
-        }
-        mCheckBoxes.clear();
-
+        ArrayList<SyncStateRepository.Key> rows = new ArrayList<SyncStateRepository.Key>();
         for (int i = 0, n = accounts.length; i < n; i++) {
             final Account account = accounts[i];
             if (LDEBUG) Log.d(TAG, "looking for sync adapters that match account " + account);
@@ -416,14 +735,52 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
                 for (int j = 0, m = authorities.size(); j < m; j++) {
                     final String authority = authorities.get(j);
                     // We could check services here....
-                    int syncState = ContentResolver.getIsSyncable(account, authority);
+                    int syncState = mSyncState.getAuthorityState(account, authority).syncable;
                     if (LDEBUG) Log.d(TAG, "  found authority " + authority + " " + syncState);
                     if (syncState > 0) {
-                        addSyncStateCheckBox(account, authority);
+                        rows.add(new SyncStateRepository.Key(account, authority));
                     }
                 }
             }
         }
+
+        if (rows.size() == mCheckBoxes.size()) {
+            boolean unchanged = true;
+            for (int i = 0, n = rows.size(); i < n && unchanged; i++) {
+                SyncStateCheckBoxPreference syncPref = mCheckBoxes.get(i);
+                unchanged = rows.get(i).equals(new SyncStateRepository.Key(
+                        syncPref.getAccount(), syncPref.getAuthority()));
+            }
+            if (unchanged) {
+                return false;
+            }
+        }
+
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            getPreferenceScreen().removePreference(mCheckBoxes.get(i));
+        }
+        mCheckBoxes.clear();
+        mSearchIndex.clear();
+        for (SyncStateRepository.Key row : rows) {
+            addSyncStateCheckBox(row.account, row.authority);
+        }
+        if (isSearching()) {
+            applySearch();
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean isAccountTypeShown(String accountType) {
+        return mAccount != null && mAccount.type.equals(accountType);
+    }
+
+    @Override
+    protected void onPackagesChanged() {
+        super.onPackagesChanged();
+        // onAuthDescriptionsUpdated() took the sync rows off the screen, and the provider
+        // labels may have changed
+        onAccountsUpdated(mSyncState.getAccounts());
     }
 
     /**
@@ -433,13 +790,24 @@ public class AccountSyncSettings extends AccountPreferenceBase implements OnClic
     protected void onAuthDescriptionsUpdated() {
         super.onAuthDescriptionsUpdated();
         getPreferenceScreen().removeAll();
+        mCheckBoxes.clear();
+        mSearchIndex.clear();
         mProviderIcon.setImageDrawable(getDrawableForType(mAccount.type));
         mProviderId.setText(getLabelForType(mAccount.type));
         PreferenceScreen prefs = addPreferencesForType(mAccount.type);
         if (prefs != null) {
             updatePreferenceIntents(prefs);
         }
-        addPreferencesFromResource(R.xml.account_sync_settings);
+        PreferenceScreen screen = getPreferenceScreen();
+        for (Preference pref : mOwnPreferences) {
+            if (pref != mSyncOptionsCategory) {
+                // take the next position after the authenticator's preferences again;
+                // the sync options have a fixed order below the sync checkboxes
+                pref.setOrder(Preference.DEFAULT_ORDER);
+            }
+            screen.addPreference(pref);
+        }
+        mUnmeteredOnlyCheckBox.setChecked(UnmeteredSyncQueue.isUnmeteredOnly(this, mAccount));
     }
 
     private void updatePreferenceIntents(PreferenceScreen prefs) {
@@ -2,19 +2,37 @@ package com.android.settings;
 
 import com.android.providers.subscribedfeeds.R;
 
+import android.accounts.Account;
 import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceScreen;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.TextView;
+
+import java.util.ArrayList;
 
 /**
  * This is AccountSyncSettings with 'remove account' button always gone and 
  * a wizard-like button bar to complete the activity.
  *
+ * The first syncs of the new account are run through an InitialSyncOrchestrator, most
+ * important data first, with their progress shown in the rows and next to the button.
  */
 public class AccountSyncSettingsInAddAccount extends AccountSyncSettings 
         implements OnClickListener {
     private View mFinishArea;
     private View mFinishButton;
+    private TextView mInitialSyncProgress;
+    private InitialSyncOrchestrator mInitialSync;
+    // true once mInitialSync was handed to the next instance
+    private boolean mInitialSyncRetained;
+
+    private final Runnable mInitialSyncListener = new Runnable() {
+        public void run() {
+            updateInitialSyncProgress();
+        }
+    };
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -25,9 +43,112 @@ public class AccountSyncSettingsInAddAccount extends AccountSyncSettings
         mFinishArea.setVisibility(View.VISIBLE);
         mFinishButton = (View) findViewById(R.id.finish_button);
         mFinishButton.setOnClickListener(this);
+        mInitialSyncProgress = (TextView) findViewById(R.id.initial_sync_progress);
+
+        mInitialSync = (InitialSyncOrchestrator) getLastNonConfigurationInstance();
+        if (mInitialSync == null && icicle == null) {
+            startInitialSync();
+        }
+        if (mInitialSync != null) {
+            mInitialSync.setListener(mInitialSyncListener);
+        }
+        updateInitialSyncProgress();
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        mInitialSyncRetained = mInitialSync != null;
+        return mInitialSync;
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mInitialSync != null) {
+            mInitialSync.setListener(null);
+            if (!mInitialSyncRetained) {
+                // nobody is left to let the held back syncs run one by one
+                mInitialSync.releaseAll();
+            }
+        }
+        super.onDestroy();
     }
 
     public void onClick(View v) {
         finish();
     }
+
+    /**
+     * Orders the first syncs of the authorities that sync automatically, unless they
+     * wouldn't run now anyway.
+     */
+    private void startInitialSync() {
+        final Account account = getAccount();
+        if (account == null || !mSyncState.getMasterSyncAutomatically()
+                || !mSyncState.getBackgroundDataSetting()
+                || UnmeteredSyncQueue.shouldDefer(this, account)) {
+            return;
+        }
+        ArrayList<String> authorities = new ArrayList<String>();
+        for (String authority : getSyncableAuthorities(account)) {
+            if (mSyncState.getAuthoritySettings(account, authority).syncAutomatically) {
+                authorities.add(authority);
+            }
+        }
+        if (!authorities.isEmpty()) {
+            mInitialSync = new InitialSyncOrchestrator(mSyncState, account, authorities);
+            mInitialSync.start();
+        }
+    }
+
+    @Override
+    protected void onSyncStateUpdated(int which) {
+        super.onSyncStateUpdated(which);
+        if (mInitialSync != null && !mInitialSync.isFinished()) {
+            mInitialSync.update();
+        }
+        updateInitialSyncProgress();
+    }
+
+    private void updateInitialSyncProgress() {
+        if (mInitialSyncProgress == null) {
+            // called by the base class before onCreate() got to us
+            return;
+        }
+        if (mInitialSync == null) {
+            mInitialSyncProgress.setVisibility(View.GONE);
+            return;
+        }
+        mInitialSyncProgress.setVisibility(View.VISIBLE);
+        final int total = mInitialSync.size();
+        final long remaining = mInitialSync.getRemainingTime();
+        if (mInitialSync.isFinished()) {
+            mInitialSyncProgress.setText(R.string.initial_sync_done);
+        } else if (remaining < 0) {
+            mInitialSyncProgress.setText(getString(R.string.initial_sync_progress,
+                    mInitialSync.getDoneCount(), total));
+        } else {
+            mInitialSyncProgress.setText(getString(R.string.initial_sync_progress_eta,
+                    mInitialSync.getDoneCount(), total, (remaining + 59999) / 60000));
+        }
+
+        // rows whose stage is done show their last sync time again
+        PreferenceScreen screen = getPreferenceScreen();
+        for (int i = 0, n = screen.getPreferenceCount(); i < n; i++) {
+            Preference pref = screen.getPreference(i);
+            if (!(pref instanceof SyncStateCheckBoxPreference)) {
+                continue;
+            }
+            final String authority = ((SyncStateCheckBoxPreference) pref).getAuthority();
+            switch (mInitialSync.getState(authority)) {
+                case InitialSyncOrchestrator.STATE_QUEUED:
+                    pref.setSummary(getString(R.string.initial_sync_queued,
+                            mInitialSync.getPosition(authority),
+                            mInitialSync.getQueuedCount()));
+                    break;
+                case InitialSyncOrchestrator.STATE_RUNNING:
+                    pref.setSummary(R.string.initial_sync_running);
+                    break;
+            }
+        }
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncAdapterType;
+import android.net.ConnectivityManager;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The sync state of one account as ManageAccountsSettings last showed it. It is passed
+ * to AccountSyncSettings with the launch intent so the detail screen can draw its rows
+ * right away and check them against the live state once it is up.
+ */
+public class AccountSyncSnapshot implements Parcelable {
+    static final String EXTRA_KEY = "syncSnapshot";
+
+    static final int FLAG_SYNC_AUTOMATICALLY = 1 << 0;
+    static final int FLAG_PENDING = 1 << 1;
+    static final int FLAG_ACTIVE = 1 << 2;
+    static final int FLAG_FAILED = 1 << 3;
+    static final int FLAG_INITIALIZE = 1 << 4;
+    static final int FLAG_DEFERRED = 1 << 5;
+
+    final Account account;
+    /** Repository version the snapshot was taken at. */
+    final int version;
+    final boolean masterSyncAutomatically;
+    final boolean backgroundDataSetting;
+    final String[] authorities;
+    final CharSequence[] providerLabels;
+    final int[] flags;
+    final long[] lastSuccessTimes;
+
+    private AccountSyncSnapshot(Account account, int version,
+            boolean masterSyncAutomatically, boolean backgroundDataSetting, int rows) {
+        this.account = account;
+        this.version = version;
+        this.masterSyncAutomatically = masterSyncAutomatically;
+        this.backgroundDataSetting = backgroundDataSetting;
+        authorities = new String[rows];
+        providerLabels = new CharSequence[rows];
+        flags = new int[rows];
+        lastSuccessTimes = new long[rows];
+    }
+
+    /**
+     * Takes a snapshot of the given authorities of an account from the repository.
+     */
+    static AccountSyncSnapshot capture(Context context, SyncStateRepository syncState,
+            Account account, List<String> authorities) {
+        final int n = authorities.size();
+        AccountSyncSnapshot snapshot = new AccountSyncSnapshot(account,
+                syncState.getVersion(), syncState.getMasterSyncAutomatically(),
+                syncState.getBackgroundDataSetting(), n);
+        for (int i = 0; i < n; i++) {
+            final String authority = authorities.get(i);
+            SyncStateRepository.AuthorityState state =
+                    syncState.getAuthorityState(account, authority);
+            int flags = 0;
+            if (state.syncAutomatically) flags |= FLAG_SYNC_AUTOMATICALLY;
+            if (state.pending) flags |= FLAG_PENDING;
+            if (syncState.isActive(account, authority)) flags |= FLAG_ACTIVE;
+            if (state.isLastSyncFailed()) flags |= FLAG_FAILED;
+            if (state.initialize) flags |= FLAG_INITIALIZE;
+            if (UnmeteredSyncQueue.isQueued(context, account, authority)) {
+                flags |= FLAG_DEFERRED;
+            }
+            snapshot.authorities[i] = authority;
+            snapshot.providerLabels[i] = syncState.getProviderLabel(authority);
+            snapshot.flags[i] = flags;
+            snapshot.lastSuccessTimes[i] = state.lastSuccessTime;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads the live state of the account's syncable, user visible authorities straight
+     * from the sync manager, bypassing the repository's cache. Safe to call from any
+     * thread; the provider labels are taken from an earlier snapshot where it has them.
+     * @param version the repository version the state is read for
+     * @param invisibleAuthorities filled with the authorities of sync adapters that are
+     *     not shown to the user
+     */
+    static AccountSyncSnapshot load(Context context, int version, Account account,
+            AccountSyncSnapshot previous, List<String> invisibleAuthorities) {
+        ArrayList<String> authorities = new ArrayList<String>();
+        ArrayList<SyncStateRepository.AuthorityState> states =
+                new ArrayList<SyncStateRepository.AuthorityState>();
+        long start = IpcAuditor.begin();
+        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+        IpcAuditor.end("ContentResolver.getSyncAdapterTypes", start);
+        for (SyncAdapterType sa : syncAdapters) {
+            if (!sa.isUserVisible()) {
+                invisibleAuthorities.add(sa.authority);
+            } else if (sa.accountType.equals(account.type)) {
+                SyncStateRepository.AuthorityState state =
+                        SyncStateRepository.loadAuthorityState(account, sa.authority);
+                if (state.syncable > 0) {
+                    authorities.add(sa.authority);
+                    states.add(state);
+                }
+            }
+        }
+        ConnectivityManager connManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final ActiveSyncIndex activeSyncs = ActiveSyncIndex.load();
+        final int n = authorities.size();
+        start = IpcAuditor.begin();
+        final boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
+        IpcAuditor.end("ContentResolver.getMasterSyncAutomatically", start);
+        start = IpcAuditor.begin();
+        final boolean backgroundDataSetting = connManager.getBackgroundDataSetting();
+        IpcAuditor.end("ConnectivityManager.getBackgroundDataSetting", start);
+        AccountSyncSnapshot snapshot = new AccountSyncSnapshot(account, version,
+                masterSyncAutomatically, backgroundDataSetting, n);
+        for (int i = 0; i < n; i++) {
+            final String authority = authorities.get(i);
+            final SyncStateRepository.AuthorityState state = states.get(i);
+            int flags = 0;
+            if (state.syncAutomatically) flags |= FLAG_SYNC_AUTOMATICALLY;
+            if (state.pending) flags |= FLAG_PENDING;
+            if (activeSyncs.isActive(account, authority)) flags |= FLAG_ACTIVE;
+            if (state.isLastSyncFailed()) flags |= FLAG_FAILED;
+            if (state.initialize) flags |= FLAG_INITIALIZE;
+            if (UnmeteredSyncQueue.isQueued(context, account, authority)) {
+                flags |= FLAG_DEFERRED;
+            }
+            snapshot.authorities[i] = authority;
+            snapshot.providerLabels[i] = previous != null ? previous.getLabel(authority) : null;
+            snapshot.flags[i] = flags;
+            snapshot.lastSuccessTimes[i] = state.lastSuccessTime;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns true if the snapshot has the same rows, in the same order, as another.
+     */
+    boolean hasSameRows(AccountSyncSnapshot other) {
+        return Arrays.equals(authorities, other.authorities);
+    }
+
+    private CharSequence getLabel(String authority) {
+        for (int i = 0; i < authorities.length; i++) {
+            if (authorities[i].equals(authority)) {
+                return providerLabels[i];
+            }
+        }
+        return null;
+    }
+
+    boolean hasFlag(int row, int flag) {
+        return (flags[row] & flag) != 0;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int parcelableFlags) {
+        account.writeToParcel(dest, parcelableFlags);
+        dest.writeInt(version);
+        dest.writeInt((masterSyncAutomatically ? 1 : 0) | (backgroundDataSetting ? 2 : 0));
+        dest.writeInt(authorities.length);
+        for (int i = 0; i < authorities.length; i++) {
+            dest.writeString(authorities[i]);
+            TextUtils.writeToParcel(providerLabels[i], dest, parcelableFlags);
+            dest.writeInt(flags[i]);
+            dest.writeLong(lastSuccessTimes[i]);
+        }
+    }
+
+    public static final Parcelable.Creator<AccountSyncSnapshot> CREATOR =
+            new Parcelable.Creator<AccountSyncSnapshot>() {
+        public AccountSyncSnapshot createFromParcel(Parcel source) {
+            Account account = Account.CREATOR.createFromParcel(source);
+            int version = source.readInt();
+            int settings = source.readInt();
+            int rows = source.readInt();
+            AccountSyncSnapshot snapshot = new AccountSyncSnapshot(account, version,
+                    (settings & 1) != 0, (settings & 2) != 0, rows);
+            for (int i = 0; i < rows; i++) {
+                snapshot.authorities[i] = source.readString();
+                snapshot.providerLabels[i] =
+                        TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(source);
+                snapshot.flags[i] = source.readInt();
+                snapshot.lastSuccessTimes[i] = source.readLong();
+            }
+            return snapshot;
+        }
+
+        public AccountSyncSnapshot[] newArray(int size) {
+            return new AccountSyncSnapshot[size];
+        }
+    };
+}
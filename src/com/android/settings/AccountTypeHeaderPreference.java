@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import com.android.providers.subscribedfeeds.R;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.preference.Preference;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.text.CollationKey;
+
+/**
+ * Header row of the accounts of one type in the account list. Touching it shows or hides
+ * the accounts; the row itself shows how many accounts there are and for how many sync
+ * is on.
+ */
+public class AccountTypeHeaderPreference extends Preference {
+    private final String mAccountType;
+    private CollationKey mGroupKey;
+    private Drawable mProviderIcon;
+    private boolean mExpanded;
+    private int mAccountCount;
+    private int mEnabledCount;
+    private boolean mHasError;
+
+    /** Child views of the row, see AccountPreference. */
+    private static class ViewHolder {
+        TextView summary;
+        ImageView providerIcon;
+        ImageView syncStatusIcon;
+        AccountTypeHeaderPreference owner;
+    }
+
+    private ViewHolder mViewHolder;
+
+    public AccountTypeHeaderPreference(Context context, String accountType,
+            CharSequence label, Drawable icon) {
+        super(context);
+        mAccountType = accountType;
+        mProviderIcon = icon;
+        setLayoutResource(R.layout.account_preference);
+        setTitle(label != null ? label : accountType);
+        setPersistent(false);
+    }
+
+    public String getAccountType() {
+        return mAccountType;
+    }
+
+    /**
+     * Sets the collation key of the type's label, which orders the groups.
+     */
+    public void setGroupKey(CollationKey groupKey) {
+        mGroupKey = groupKey;
+    }
+
+    public CollationKey getGroupKey() {
+        return mGroupKey;
+    }
+
+    public boolean isExpanded() {
+        return mExpanded;
+    }
+
+    public void setExpanded(boolean expanded) {
+        if (mExpanded != expanded) {
+            mExpanded = expanded;
+            bindSummary();
+        }
+    }
+
+    public void setProviderIcon(Drawable icon) {
+        if (icon == mProviderIcon) {
+            return;
+        }
+        mProviderIcon = icon;
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            holder.providerIcon.setImageDrawable(icon);
+        }
+    }
+
+    /**
+     * Sets the totals shown for the group.
+     * @param accountCount the number of accounts of the type
+     * @param enabledCount the number of those that sync automatically
+     * @param hasError whether any of them is known to have a sync problem
+     */
+    public void setAggregate(int accountCount, int enabledCount, boolean hasError) {
+        if (accountCount == mAccountCount && enabledCount == mEnabledCount
+                && hasError == mHasError) {
+            return;
+        }
+        mAccountCount = accountCount;
+        mEnabledCount = enabledCount;
+        mHasError = hasError;
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            holder.syncStatusIcon.setImageResource(getSyncStatusIcon());
+        }
+        bindSummary();
+    }
+
+    @Override
+    protected void onBindView(View view) {
+        super.onBindView(view);
+        ViewHolder holder = (ViewHolder) view.getTag(R.id.preference_view_holder);
+        if (holder == null) {
+            holder = new ViewHolder();
+            holder.summary = (TextView) view.findViewById(android.R.id.summary);
+            holder.providerIcon = (ImageView) view.findViewById(R.id.providerIcon);
+            holder.syncStatusIcon = (ImageView) view.findViewById(R.id.syncStatusIcon);
+            view.setTag(R.id.preference_view_holder, holder);
+        }
+        holder.owner = this;
+        mViewHolder = holder;
+        holder.providerIcon.setImageDrawable(mProviderIcon);
+        holder.syncStatusIcon.setImageResource(getSyncStatusIcon());
+    }
+
+    @Override
+    public CharSequence getSummary() {
+        return getContext().getString(mExpanded
+                ? R.string.account_group_summary_expanded
+                : R.string.account_group_summary_collapsed, mAccountCount, mEnabledCount);
+    }
+
+    private ViewHolder getBoundViewHolder() {
+        return mViewHolder != null && mViewHolder.owner == this ? mViewHolder : null;
+    }
+
+    private void bindSummary() {
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            holder.summary.setText(getSummary());
+        }
+    }
+
+    private int getSyncStatusIcon() {
+        if (mHasError) {
+            return R.drawable.ic_sync_red;
+        }
+        return mEnabledCount > 0 ? R.drawable.ic_sync_green : R.drawable.ic_sync_grey;
+    }
+
+    /**
+     * Rebinds only this row instead of invalidating the whole list.
+     */
+    @Override
+    protected void notifyChanged() {
+        if (!AccountPreferenceBase.requestRebind(this)) {
+            super.notifyChanged();
+        }
+    }
+
+    @Override
+    public int compareTo(Preference other) {
+        if (other instanceof AccountTypeHeaderPreference) {
+            AccountTypeHeaderPreference header = (AccountTypeHeaderPreference) other;
+            return compareGroups(mGroupKey, mAccountType, header.mGroupKey,
+                    header.mAccountType);
+        }
+        if (other instanceof AccountPreference) {
+            AccountPreference account = (AccountPreference) other;
+            int result = compareGroups(mGroupKey, mAccountType, account.getGroupKey(),
+                    account.getAccount().type);
+            // the header goes above the accounts of its own type
+            return result != 0 ? result : -1;
+        }
+        // Put other preference types above us
+        return 1;
+    }
+
+    /**
+     * Orders two account types by their labels' collation keys, falling back to the type
+     * names. Returns 0 only for the same type.
+     */
+    static int compareGroups(CollationKey keyA, String typeA, CollationKey keyB,
+            String typeB) {
+        if (typeA.equals(typeB)) {
+            return 0;
+        }
+        if (keyA != null && keyB != null) {
+            int result = keyA.compareTo(keyB);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return typeA.compareTo(typeB);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SyncInfo;
+
+import java.util.HashSet;
+
+/**
+ * The set of (account, authority) pairs that are syncing right now. Built once per
+ * ACTIVE event so every row can look up its own state without comparing against the
+ * current sync, and able to hold any number of concurrent syncs.
+ */
+class ActiveSyncIndex {
+    private final HashSet<SyncStateRepository.Key> mActive =
+            new HashSet<SyncStateRepository.Key>();
+    private final HashSet<Account> mActiveAccounts = new HashSet<Account>();
+
+    /**
+     * Reads the running syncs from the sync manager.
+     */
+    static ActiveSyncIndex load() {
+        ActiveSyncIndex index = new ActiveSyncIndex();
+        // the sync manager runs at most one sync at a time on this platform
+        final long start = IpcAuditor.begin();
+        SyncInfo currentSync = ContentResolver.getCurrentSync();
+        IpcAuditor.end("ContentResolver.getCurrentSync", start);
+        if (currentSync != null) {
+            index.add(currentSync);
+        }
+        return index;
+    }
+
+    private void add(SyncInfo sync) {
+        mActive.add(new SyncStateRepository.Key(sync.account, sync.authority));
+        mActiveAccounts.add(sync.account);
+    }
+
+    boolean isActive(Account account, String authority) {
+        return mActiveAccounts.contains(account)
+                && mActive.contains(new SyncStateRepository.Key(account, authority));
+    }
+
+    /**
+     * Returns true if any authority of the account is syncing.
+     */
+    boolean isAccountActive(Account account) {
+        return mActiveAccounts.contains(account);
+    }
+
+    boolean isEmpty() {
+        return mActive.isEmpty();
+    }
+}
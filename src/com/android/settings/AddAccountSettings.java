@@ -23,6 +23,7 @@ import android.accounts.AuthenticatorException;
 import android.accounts.AccountManagerFuture;
 import android.accounts.OperationCanceledException;
 import android.accounts.AccountManagerCallback;
+import android.content.Context;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.preference.Preference;
@@ -32,23 +33,100 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AddAccountSettings extends AccountPreferenceBase {
     private static final String TAG = "AccountSettings";
     private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    /** Upper bound of threads loading provider labels and icons. */
+    private static final int MAX_LOADER_THREADS = 4;
+    /**
+     * The activity alias that runs the provisioning batch: instead of offering the
+     * providers, the accounts of AccountProvisioningManifest are added. The alias needs
+     * the PROVISION_ACCOUNTS permission, so only the device setup tools can start it.
+     */
+    private static final String PROVISIONING_ALIAS = "com.android.settings.ProvisionAccounts";
+    /** Int extra, the number of accounts of the batch being added at the same time. */
+    static final String EXTRA_PROVISIONING_CONCURRENCY = "provisioningConcurrency";
+    private static final int DEFAULT_PROVISIONING_CONCURRENCY = 3;
+    private static final int MAX_PROVISIONING_CONCURRENCY = 8;
     private String[] mAuthorities;
     private PreferenceGroup mAddAccountGroup;
     private ArrayList<ProviderEntry> mProviderList = new ArrayList<ProviderEntry>();;
+    private ExecutorService mLoaderPool;
+    private ProvisioningBatch mBatch;
+    // true once mBatch was handed to the next instance, which then owns the queue
+    private boolean mBatchRetained;
+    private Preference mBatchProgress;
+    private ArrayList<Preference> mBatchRows = new ArrayList<Preference>();
 
     private static class ProviderEntry {
-        private final CharSequence name;
         private final String type;
-        ProviderEntry(CharSequence providerName, String accountType) {
-            name = providerName;
+        ProviderEntry(String accountType) {
             type = accountType;
         }
     }
 
+    /**
+     * The provisioning batch and what its list shows. Handed over to the next instance of
+     * the activity on configuration changes, so the batch isn't started again.
+     */
+    private static class ProvisioningBatch {
+        ProvisioningQueue queue;
+        boolean started;
+        CharSequence[] labels;
+        CharSequence[] summaries;
+        CharSequence progressTitle;
+        CharSequence progressSummary;
+        int done;
+        int failed;
+    }
+
+    /**
+     * Adds the accounts of a provisioning batch without an activity, so the authenticators
+     * can't bring up their screens. Those that need the user report it as their failure.
+     */
+    private static class ProvisioningQueue
+            extends AccountOperationQueue<AccountProvisioningManifest.Entry, Bundle> {
+        private final Context mContext;
+
+        ProvisioningQueue(Context context, ArrayList<AccountProvisioningManifest.Entry> entries,
+                int concurrency,
+                AccountOperationQueue.Listener<AccountProvisioningManifest.Entry> listener) {
+            super(entries, concurrency, listener);
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected AccountManagerFuture<Bundle> startOperation(
+                AccountProvisioningManifest.Entry entry,
+                AccountManagerCallback<Bundle> callback) {
+            final long start = IpcAuditor.begin();
+            AccountManagerFuture<Bundle> future = AccountManager.get(mContext).addAccount(
+                    entry.accountType,
+                    null, /* authTokenType */
+                    null, /* requiredFeatures */
+                    entry.options,
+                    null, /* activity */
+                    callback,
+                    null /* handler */);
+            IpcAuditor.end("AccountManager.addAccount", start);
+            return future;
+        }
+
+        @Override
+        protected boolean isSuccess(Bundle result) {
+            return result != null && !result.containsKey(AccountManager.KEY_INTENT);
+        }
+
+        @Override
+        protected String describeFailure(Bundle result) {
+            return result != null && result.containsKey(AccountManager.KEY_INTENT)
+                    ? mContext.getString(R.string.provisioning_needs_user) : "";
+        }
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
@@ -57,15 +135,153 @@ public class AddAccountSettings extends AccountPreferenceBase {
         addPreferencesFromResource(R.xml.add_account_settings);
         mAuthorities = getIntent().getStringArrayExtra(AUTHORITIES_FILTER_KEY);
         mAddAccountGroup = getPreferenceScreen();
-        updateAuthDescriptions();
+        if (PROVISIONING_ALIAS.equals(getComponentName().getClassName())) {
+            mBatch = (ProvisioningBatch) getLastNonConfigurationInstance();
+            if (mBatch == null) {
+                mBatch = new ProvisioningBatch();
+                if (icicle == null) {
+                    startProvisioningBatch();
+                } else {
+                    // the process died under the screen; the batch isn't run twice
+                    mBatch.progressTitle = getText(R.string.provisioning_interrupted);
+                }
+            }
+            showProvisioningBatch();
+        } else {
+            updateAuthDescriptions();
+        }
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        mBatchRetained = mBatch != null;
+        return mBatch;
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoaderPool != null) {
+            mLoaderPool.shutdownNow();
+        }
+        if (mBatch != null && mBatch.queue != null && !mBatchRetained) {
+            mBatch.queue.cancel();
+        }
+        super.onDestroy();
+    }
+
+    private final AccountOperationQueue.Listener<AccountProvisioningManifest.Entry> mBatchListener =
+            new AccountOperationQueue.Listener<AccountProvisioningManifest.Entry>() {
+        public void onOperationStarted(int position, AccountProvisioningManifest.Entry entry) {
+            setBatchRowSummary(position, getText(R.string.provisioning_adding));
+        }
+
+        public void onOperationFinished(int position, AccountProvisioningManifest.Entry entry,
+                String error) {
+            mBatch.done++;
+            if (error == null) {
+                setBatchRowSummary(position, getText(R.string.provisioning_added));
+            } else if (error.length() > 0) {
+                mBatch.failed++;
+                setBatchRowSummary(position, getString(R.string.provisioning_failed, error));
+            } else {
+                mBatch.failed++;
+                setBatchRowSummary(position, getText(R.string.provisioning_failed_no_reason));
+            }
+            setBatchProgress(getString(R.string.provisioning_progress, mBatch.done,
+                    mBatch.labels.length, mBatch.failed), null);
+        }
+
+        public void onQueueFinished(int succeeded, int failed, long elapsedMillis) {
+            final int total = mBatch.labels.length;
+            final float perMinute = elapsedMillis > 0
+                    ? (succeeded + failed) * 60000f / elapsedMillis : 0;
+            setBatchProgress(getString(R.string.provisioning_done, succeeded, total, failed),
+                    getString(R.string.provisioning_throughput, elapsedMillis / 1000,
+                            String.format("%.1f", perMinute)));
+            Log.i(TAG, "provisioned " + succeeded + " of " + total + " accounts in "
+                    + elapsedMillis + "ms");
+        }
+    };
+
+    /**
+     * Adds the accounts of the provisioning manifest, several at a time, and lists how
+     * each one went. The activity stays open until the user leaves it.
+     */
+    private void startProvisioningBatch() {
+        final ArrayList<AccountProvisioningManifest.Entry> entries;
+        try {
+            entries = AccountProvisioningManifest.read(this);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read provisioning manifest", e);
+            mBatch.progressTitle = getString(R.string.provisioning_manifest_error,
+                    e.getMessage());
+            return;
+        }
+        final int total = entries.size();
+        mBatch.labels = new CharSequence[total];
+        mBatch.summaries = new CharSequence[total];
+        for (int i = 0; i < total; i++) {
+            mBatch.labels[i] = entries.get(i).getLabel();
+            mBatch.summaries[i] = getText(R.string.provisioning_waiting);
+        }
+        mBatch.progressTitle = getString(R.string.provisioning_progress, 0, total, 0);
+
+        final int concurrency = Math.min(MAX_PROVISIONING_CONCURRENCY, getIntent().getIntExtra(
+                EXTRA_PROVISIONING_CONCURRENCY, DEFAULT_PROVISIONING_CONCURRENCY));
+        mBatch.queue = new ProvisioningQueue(this, entries, concurrency, mBatchListener);
+    }
+
+    /**
+     * Lists the batch as far as it got, and starts it or takes it over from the previous
+     * instance of the activity.
+     */
+    private void showProvisioningBatch() {
+        setTitle(R.string.provisioning_title);
+        mBatchProgress = new Preference(this);
+        mBatchProgress.setSelectable(false);
+        mBatchProgress.setTitle(mBatch.progressTitle);
+        mBatchProgress.setSummary(mBatch.progressSummary);
+        mAddAccountGroup.addPreference(mBatchProgress);
+        for (int i = 0, n = mBatch.labels != null ? mBatch.labels.length : 0; i < n; i++) {
+            Preference row = new Preference(this);
+            row.setSelectable(false);
+            row.setTitle(mBatch.labels[i]);
+            row.setSummary(mBatch.summaries[i]);
+            mAddAccountGroup.addPreference(row);
+            mBatchRows.add(row);
+        }
+        if (mBatch.queue != null) {
+            mBatch.queue.setListener(mBatchListener);
+            if (!mBatch.started) {
+                mBatch.started = true;
+                mBatch.queue.start();
+            }
+        }
+    }
+
+    private void setBatchRowSummary(int position, CharSequence summary) {
+        mBatch.summaries[position] = summary;
+        mBatchRows.get(position).setSummary(summary);
+    }
+
+    private void setBatchProgress(CharSequence title, CharSequence summary) {
+        mBatch.progressTitle = title;
+        mBatch.progressSummary = summary;
+        mBatchProgress.setTitle(title);
+        mBatchProgress.setSummary(summary);
+    }
+
+    @Override
+    protected void onPackagesChanged() {
+        // the providers are listed once, when the screen is created
     }
 
     @Override
     protected void onAuthDescriptionsUpdated() {
-        // Create list of providers to show on preference screen
+        // Create list of providers to show on preference screen. Which providers qualify
+        // only depends on the sync adapters, so labels and icons are loaded afterwards.
         for (int i = 0; i < mAuthDescs.length; i++) {
             String accountType = mAuthDescs[i].type;
-            CharSequence providerName = getLabelForType(accountType);
 
             // Skip preferences for authorities not specified. If no authorities specified,
             // then include them all.
@@ -81,9 +297,9 @@ public class AddAccountSettings extends AccountPreferenceBase {
                 }
             }
             if (addAccountPref) {
-                mProviderList.add(new ProviderEntry(providerName, accountType));
+                mProviderList.add(new ProviderEntry(accountType));
             } else {
-                if (LDEBUG) Log.v(TAG, "Skipped pref " + providerName + ": has no authority we need");
+                if (LDEBUG) Log.v(TAG, "Skipped pref " + accountType + ": has no authority we need");
             }
         }
 
@@ -93,11 +309,7 @@ public class AddAccountSettings extends AccountPreferenceBase {
             finish();
         } else if (mProviderList.size() > 0) {
             mAddAccountGroup.removeAll();
-            for (ProviderEntry pref : mProviderList) {
-                Drawable drawable = getDrawableForType(pref.type);
-                ProviderPreference p = new ProviderPreference(this, pref.type, drawable, pref.name);
-                mAddAccountGroup.addPreference(p);
-            }
+            loadProviderPreferences();
         } else {
             String auths = new String();
             for (String a : mAuthorities) auths += a + " ";
@@ -105,6 +317,39 @@ public class AddAccountSettings extends AccountPreferenceBase {
         }
     }
 
+    /**
+     * Loads the label and icon of every provider on a small thread pool and adds each
+     * provider's preference as soon as its resources are in. The preferences are ordered
+     * by their position in mProviderList, not by when they finish loading.
+     */
+    private void loadProviderPreferences() {
+        final int count = mProviderList.size();
+        mLoaderPool = Executors.newFixedThreadPool(Math.min(MAX_LOADER_THREADS, count));
+        for (int i = 0; i < count; i++) {
+            final int order = i;
+            final String accountType = mProviderList.get(i).type;
+            mLoaderPool.execute(new Runnable() {
+                public void run() {
+                    final CharSequence name = getLabelForType(accountType);
+                    final Drawable drawable = getDrawableForType(accountType);
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (isFinishing()) {
+                                return;
+                            }
+                            ProviderPreference p = new ProviderPreference(
+                                    AddAccountSettings.this, accountType, drawable, name);
+                            p.setOrder(order);
+                            mAddAccountGroup.addPreference(p);
+                        }
+                    });
+                }
+            });
+        }
+        // the threads go away once every provider is loaded
+        mLoaderPool.shutdown();
+    }
+
     private AccountManagerCallback<Bundle> mCallback = new AccountManagerCallback<Bundle>() {
         public void run(AccountManagerFuture<Bundle> future) {
             boolean accountAdded = false;
@@ -136,6 +381,7 @@ public class AddAccountSettings extends AccountPreferenceBase {
     }
 
     private void addAccount(String accountType) {
+        final long start = IpcAuditor.begin();
         AccountManager.get(this).addAccount(
                 accountType,
                 null, /* authTokenType */
@@ -144,5 +390,6 @@ public class AddAccountSettings extends AccountPreferenceBase {
                 this,
                 mCallback,
                 null /* handler */);
+        IpcAuditor.end("AccountManager.addAccount", start);
     }
 }
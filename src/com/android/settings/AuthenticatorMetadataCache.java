@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.AuthenticatorDescription;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Labels and icons of the authenticators, kept in memory and on disk so that the account
+ * screens don't have to open every authenticator's package to draw themselves.
+ *
+ * Entries are stored per account type, in files named after the package and the type so
+ * a package's files can be found without opening them, and are only used while the
+ * package name, its version code, the locale and the resource ids still match. Icons are
+ * stored as PNGs rendered at the size they are shown at. AuthenticatorCacheReceiver drops
+ * the entries of a package when it is updated or removed.
+ *
+ * Safe to use from any thread.
+ */
+class AuthenticatorMetadataCache {
+    private static final String TAG = "AccountSettings";
+    private static final String DIR_NAME = "authenticators";
+    /** Separates package and account type in the file names; Uri.encode() escapes it. */
+    private static final char FILE_NAME_SEPARATOR = '@';
+    private static final int MAGIC = 0x41555448;    // "AUTH"
+    private static final int FORMAT_VERSION = 1;
+    /** Icons are scaled down to fit this size, the one of the account screens' title icon. */
+    private static final int MAX_ICON_SIZE_DIP = 48;
+
+    private static class Entry {
+        String packageName;
+        int versionCode;
+        String locale;
+        int labelId;
+        int iconId;
+        CharSequence label;
+        Bitmap icon;
+
+        boolean matches(AuthenticatorDescription desc, int versionCode, String locale) {
+            return packageName.equals(desc.packageName) && this.versionCode == versionCode
+                    && this.locale.equals(locale) && labelId == desc.labelId
+                    && iconId == desc.iconId;
+        }
+    }
+
+    private static AuthenticatorMetadataCache sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    /** Version codes already looked up, by package. */
+    private final HashMap<String, Integer> mVersionCodes = new HashMap<String, Integer>();
+
+    private AuthenticatorMetadataCache(Context context) {
+        mContext = context;
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    static synchronized AuthenticatorMetadataCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AuthenticatorMetadataCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the label of the authenticator, or null if its package is gone.
+     */
+    CharSequence getLabel(AuthenticatorDescription desc) {
+        Entry entry = getEntry(desc);
+        return entry != null ? entry.label : null;
+    }
+
+    /**
+     * Returns the icon of the authenticator, or null if it has none or its package is gone.
+     */
+    Drawable getIcon(AuthenticatorDescription desc) {
+        Entry entry = getEntry(desc);
+        return entry != null && entry.icon != null
+                ? new BitmapDrawable(mContext.getResources(), entry.icon) : null;
+    }
+
+    /**
+     * Forgets what is held in memory about a package, so the next lookup checks its
+     * version code again. The files are left to invalidate().
+     */
+    synchronized void forget(String packageName) {
+        mVersionCodes.remove(packageName);
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (it.next().packageName.equals(packageName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets everything cached about a package.
+     */
+    void invalidate(String packageName) {
+        forget(packageName);
+        // the version check would skip stale files anyway, this just frees the space
+        final String prefix = Uri.encode(packageName) + FILE_NAME_SEPARATOR;
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    new File(mDir, name).delete();
+                }
+            }
+        }
+    }
+
+    private File getFile(AuthenticatorDescription desc) {
+        return new File(mDir, Uri.encode(desc.packageName) + FILE_NAME_SEPARATOR
+                + Uri.encode(desc.type));
+    }
+
+    private Entry getEntry(AuthenticatorDescription desc) {
+        final int versionCode;
+        try {
+            versionCode = getVersionCode(desc.packageName);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "No package for account type " + desc.type);
+            return null;
+        }
+        final String locale = Locale.getDefault().toString();
+        synchronized (this) {
+            Entry entry = mEntries.get(desc.type);
+            if (entry != null && entry.matches(desc, versionCode, locale)) {
+                return entry;
+            }
+        }
+        final File file = getFile(desc);
+        Entry entry = readEntry(file);
+        if (entry == null || !entry.matches(desc, versionCode, locale)) {
+            entry = loadEntry(desc, versionCode, locale);
+            if (entry == null) {
+                return null;
+            }
+            writeEntry(file, entry);
+        }
+        synchronized (this) {
+            mEntries.put(desc.type, entry);
+        }
+        return entry;
+    }
+
+    private int getVersionCode(String packageName) throws PackageManager.NameNotFoundException {
+        synchronized (this) {
+            Integer versionCode = mVersionCodes.get(packageName);
+            if (versionCode != null) {
+                return versionCode;
+            }
+        }
+        final long start = IpcAuditor.begin();
+        int versionCode = mContext.getPackageManager()
+                .getPackageInfo(packageName, 0).versionCode;
+        IpcAuditor.end("PackageManager.getPackageInfo", start);
+        synchronized (this) {
+            mVersionCodes.put(packageName, versionCode);
+        }
+        return versionCode;
+    }
+
+    /**
+     * Loads the label and icon from the authenticator's package.
+     */
+    private Entry loadEntry(AuthenticatorDescription desc, int versionCode, String locale) {
+        Entry entry = new Entry();
+        entry.packageName = desc.packageName;
+        entry.versionCode = versionCode;
+        entry.locale = locale;
+        entry.labelId = desc.labelId;
+        entry.iconId = desc.iconId;
+        try {
+            final long start = IpcAuditor.begin();
+            Context authContext = mContext.createPackageContext(desc.packageName, 0);
+            IpcAuditor.end("Context.createPackageContext", start);
+            Resources res = authContext.getResources();
+            if (desc.labelId != 0) {
+                entry.label = res.getText(desc.labelId);
+            }
+            if (desc.iconId != 0) {
+                entry.icon = renderIcon(res.getDrawable(desc.iconId));
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "No resources for account type " + desc.type);
+            return null;
+        } catch (Resources.NotFoundException e) {
+            Log.w(TAG, "Missing label or icon for account type " + desc.type);
+        }
+        return entry;
+    }
+
+    private Bitmap renderIcon(Drawable drawable) {
+        final int maxSize = (int) (MAX_ICON_SIZE_DIP
+                * mContext.getResources().getDisplayMetrics().density + 0.5f);
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = maxSize;
+        } else if (width > maxSize || height > maxSize) {
+            final float scale = Math.min((float) maxSize / width, (float) maxSize / height);
+            width = Math.max(1, (int) (width * scale));
+            height = Math.max(1, (int) (height * scale));
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    private static Entry readEntry(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.packageName = in.readUTF();
+            entry.versionCode = in.readInt();
+            entry.locale = in.readUTF();
+            entry.labelId = in.readInt();
+            entry.iconId = in.readInt();
+            if (in.readBoolean()) {
+                entry.label = in.readUTF();
+            }
+            final int iconLength = in.readInt();
+            if (iconLength > 0) {
+                byte[] png = new byte[iconLength];
+                in.readFully(png);
+                entry.icon = BitmapFactory.decodeByteArray(png, 0, iconLength);
+                if (entry.icon == null) {
+                    return null;
+                }
+            }
+            return entry;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read authenticator cache " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void writeEntry(File file, Entry entry) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + mDir);
+            return;
+        }
+        // written under a unique name and renamed, other threads may write the same entry
+        final File temp = new File(mDir, file.getName() + "." + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(entry.packageName);
+            out.writeInt(entry.versionCode);
+            out.writeUTF(entry.locale);
+            out.writeInt(entry.labelId);
+            out.writeInt(entry.iconId);
+            out.writeBoolean(entry.label != null);
+            if (entry.label != null) {
+                out.writeUTF(entry.label.toString());
+            }
+            if (entry.icon != null) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                entry.icon.compress(Bitmap.CompressFormat.PNG, 100, png);
+                out.writeInt(png.size());
+                png.writeTo(out);
+            } else {
+                out.writeInt(0);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write authenticator cache " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                temp.delete();
+            }
+        }
+    }
+}
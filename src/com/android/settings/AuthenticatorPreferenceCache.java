@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.AuthenticatorDescription;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceGroup;
+import android.preference.PreferenceManager;
+import android.preference.PreferenceScreen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Process-wide cache of the preferences authenticators contribute to the account sync
+ * screen, keyed by authenticator package, version, resource and locale. The first visit
+ * inflates the authenticator's XML and records the structure; later visits to any
+ * account of the same type build the preferences from the record without parsing.
+ *
+ * Only plain preferences, categories and intent-only preference screens can be recorded.
+ * A hierarchy with anything else, such as custom preference classes or layouts, is
+ * remembered as unsupported and always inflated.
+ */
+class AuthenticatorPreferenceCache {
+    private static class Template {
+        Class<?> type;
+        String key;
+        CharSequence title;
+        CharSequence summary;
+        Intent intent;
+        boolean enabled;
+        boolean selectable;
+        ArrayList<Template> children;    // only for categories
+    }
+
+    /** Cached hierarchies; a null value marks one that has to be inflated every time. */
+    private static final HashMap<String, ArrayList<Template>> sTemplates =
+            new HashMap<String, ArrayList<Template>>();
+
+    private AuthenticatorPreferenceCache() {
+    }
+
+    /**
+     * Returns the cache key of the authenticator's preferences.
+     * @throws PackageManager.NameNotFoundException if the authenticator's package is gone
+     */
+    static String getKey(Context context, AuthenticatorDescription desc)
+            throws PackageManager.NameNotFoundException {
+        final long start = IpcAuditor.begin();
+        int versionCode = context.getPackageManager()
+                .getPackageInfo(desc.packageName, 0).versionCode;
+        IpcAuditor.end("PackageManager.getPackageInfo", start);
+        // titles and summaries are stored resolved, so they depend on the locale too
+        return desc.packageName + ":" + versionCode + ":" + desc.accountPreferencesId
+                + ":" + Locale.getDefault();
+    }
+
+    static synchronized boolean contains(String key) {
+        return sTemplates.containsKey(key);
+    }
+
+    /**
+     * Adds the preferences cached under key to root.
+     * @return false if nothing usable is cached and the XML has to be inflated
+     */
+    static synchronized boolean addPreferences(String key, PreferenceManager manager,
+            Context context, PreferenceGroup root) {
+        ArrayList<Template> templates = sTemplates.get(key);
+        if (templates == null) {
+            return false;
+        }
+        addPreferences(templates, manager, context, root);
+        return true;
+    }
+
+    private static void addPreferences(ArrayList<Template> templates,
+            PreferenceManager manager, Context context, PreferenceGroup parent) {
+        for (int i = 0, n = templates.size(); i < n; i++) {
+            Template template = templates.get(i);
+            Preference pref;
+            if (template.type == PreferenceCategory.class) {
+                pref = new PreferenceCategory(context);
+            } else if (template.type == PreferenceScreen.class) {
+                pref = manager.createPreferenceScreen(context);
+            } else {
+                pref = new Preference(context);
+            }
+            pref.setKey(template.key);
+            pref.setTitle(template.title);
+            pref.setSummary(template.summary);
+            pref.setPersistent(false);
+            if (template.intent != null) {
+                // the screen adds per-account extras, keep the cached one clean
+                pref.setIntent(new Intent(template.intent));
+            }
+            pref.setEnabled(template.enabled);
+            pref.setSelectable(template.selectable);
+            // children can only be added once the group is in the hierarchy
+            parent.addPreference(pref);
+            if (template.children != null) {
+                addPreferences(template.children, manager, context, (PreferenceGroup) pref);
+            }
+        }
+    }
+
+    /**
+     * Records the preferences of root from index start on, which were just inflated from
+     * the authenticator's XML.
+     */
+    static synchronized void put(String key, PreferenceManager manager, Context context,
+            PreferenceGroup root, int start) {
+        ArrayList<Template> templates = new ArrayList<Template>();
+        boolean supported = record(manager, context, root, start, templates);
+        sTemplates.put(key, supported ? templates : null);
+    }
+
+    private static boolean record(PreferenceManager manager, Context context,
+            PreferenceGroup group, int start, ArrayList<Template> out) {
+        for (int i = start, n = group.getPreferenceCount(); i < n; i++) {
+            Preference pref = group.getPreference(i);
+            Preference plain;
+            Class<?> type = pref.getClass();
+            if (type == PreferenceCategory.class) {
+                plain = new PreferenceCategory(context);
+            } else if (type == PreferenceScreen.class) {
+                if (((PreferenceScreen) pref).getPreferenceCount() > 0) {
+                    // a nested screen of its own, not just a link
+                    return false;
+                }
+                plain = manager.createPreferenceScreen(context);
+            } else if (type == Preference.class) {
+                plain = new Preference(context);
+            } else {
+                return false;
+            }
+            if (pref.getDependency() != null
+                    || pref.getLayoutResource() != plain.getLayoutResource()
+                    || pref.getWidgetLayoutResource() != plain.getWidgetLayoutResource()) {
+                // layouts from the authenticator's package can't be rebuilt with our context
+                return false;
+            }
+            Template template = new Template();
+            template.type = type;
+            template.key = pref.getKey();
+            template.title = pref.getTitle();
+            template.summary = pref.getSummary();
+            template.intent = pref.getIntent() != null ? new Intent(pref.getIntent()) : null;
+            template.enabled = pref.isEnabled();
+            template.selectable = pref.isSelectable();
+            if (type == PreferenceCategory.class) {
+                template.children = new ArrayList<Template>();
+                if (!record(manager, context, (PreferenceGroup) pref, 0,
+                        template.children)) {
+                    return false;
+                }
+            }
+            out.add(template);
+        }
+        return true;
+    }
+}
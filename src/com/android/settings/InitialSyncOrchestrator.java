@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the first syncs of a newly added account a few at a time, in the order the user
+ * needs the data: contacts and mail before calendars, feeds and media.
+ *
+ * Adding the account queues a sync of every authority that syncs automatically, and the
+ * sync manager would run them in no particular order. start() cancels all but the first
+ * MAX_CONCURRENT_STAGES of them, whose syncs are left to run as queued, and update()
+ * requests the next held back authority whenever a stage finishes. A stage that doesn't
+ * finish within STAGE_TIMEOUT stops holding up the others.
+ *
+ * The screen must call releaseAll() when it goes away for good, or the authorities still
+ * held back would only sync at their next periodic sync or change.
+ *
+ * Not thread safe. update() is called from the screen's sync state refreshes.
+ */
+class InitialSyncOrchestrator {
+    private static final String TAG = "AccountSettings";
+    private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    /** Stages syncing at the same time. */
+    private static final int MAX_CONCURRENT_STAGES = 2;
+    /** A stage that hasn't finished after this long no longer holds up the others. */
+    private static final long STAGE_TIMEOUT = 10 * 60 * 1000;
+    /** Authorities whose data the user looks for first, most important first. */
+    private static final String[] PRIORITY_AUTHORITIES = {
+        "com.android.contacts",
+        "gmail-ls",
+        "com.google.android.gm",
+        "com.android.email.provider",
+        "com.android.calendar",
+        "com.android.browser",
+        "subscribedfeeds",
+    };
+
+    static final int STATE_QUEUED = 0;
+    static final int STATE_RUNNING = 1;
+    static final int STATE_DONE = 2;
+
+    private static class Stage {
+        final String authority;
+        int state = STATE_QUEUED;
+        /** Whether its sync was requested here rather than queued by adding the account. */
+        boolean requested;
+        /** When the stage was let run. */
+        long releaseTime;
+        /** When the sync was first seen active, 0 if it never was. */
+        long startTime;
+
+        Stage(String authority) {
+            this.authority = authority;
+        }
+    }
+
+    private final SyncStateRepository mSyncState;
+    private final Account mAccount;
+    private final ArrayList<Stage> mStages = new ArrayList<Stage>();
+    private final Handler mHandler = new Handler();
+    private Runnable mListener;
+    private int mRunning;
+    private int mDone;
+    /** Stages seen from start to end, and the time they took together. */
+    private int mTimed;
+    private long mTimedDuration;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        public void run() {
+            update();
+            if (mListener != null) {
+                mListener.run();
+            }
+        }
+    };
+
+    /**
+     * @param authorities the authorities to sync, in any order
+     */
+    InitialSyncOrchestrator(SyncStateRepository syncState, Account account,
+            List<String> authorities) {
+        mSyncState = syncState;
+        mAccount = account;
+        ArrayList<String> sorted = new ArrayList<String>(authorities);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                final int result = getPriority(a) - getPriority(b);
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        for (String authority : sorted) {
+            mStages.add(new Stage(authority));
+        }
+    }
+
+    private static int getPriority(String authority) {
+        for (int i = 0; i < PRIORITY_AUTHORITIES.length; i++) {
+            if (PRIORITY_AUTHORITIES[i].equals(authority)) {
+                return i;
+            }
+        }
+        return PRIORITY_AUTHORITIES.length;
+    }
+
+    /**
+     * Sets what to run when a stage timed out without a sync state change, or null.
+     */
+    void setListener(Runnable listener) {
+        mListener = listener;
+    }
+
+    int size() {
+        return mStages.size();
+    }
+
+    int getDoneCount() {
+        return mDone;
+    }
+
+    boolean isFinished() {
+        return mDone == mStages.size();
+    }
+
+    /**
+     * Returns the state of an authority's stage, or -1 if it isn't one of them.
+     */
+    int getState(String authority) {
+        Stage stage = findStage(authority);
+        return stage != null ? stage.state : -1;
+    }
+
+    /**
+     * Returns the 1-based position of an authority among the stages still held back, in
+     * the order they will be let run.
+     */
+    int getPosition(String authority) {
+        int position = 0;
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            Stage stage = mStages.get(i);
+            if (stage.state == STATE_QUEUED) {
+                position++;
+                if (stage.authority.equals(authority)) {
+                    return position;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of stages still held back.
+     */
+    int getQueuedCount() {
+        return mStages.size() - mDone - mRunning;
+    }
+
+    /**
+     * Estimates the time until all stages are done from the stages seen running so far.
+     * @return the estimate in milliseconds, or -1 until a stage was seen from start to end
+     */
+    long getRemainingTime() {
+        if (mTimed == 0) {
+            return -1;
+        }
+        final int left = mStages.size() - mDone;
+        return mTimedDuration / mTimed
+                * ((left + MAX_CONCURRENT_STAGES - 1) / MAX_CONCURRENT_STAGES);
+    }
+
+    /**
+     * Lets the first stages run and holds back the syncs of the others.
+     */
+    void start() {
+        final long now = System.currentTimeMillis();
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            Stage stage = mStages.get(i);
+            if (mRunning < MAX_CONCURRENT_STAGES) {
+                release(stage, now, false);
+            } else if (isSyncDone(stage, 0)) {
+                // synced before the screen came up
+                stage.state = STATE_DONE;
+                mDone++;
+            } else {
+                final long start = IpcAuditor.begin();
+                ContentResolver.cancelSync(mAccount, stage.authority);
+                IpcAuditor.end("ContentResolver.cancelSync", start);
+            }
+        }
+        update();
+    }
+
+    /**
+     * Marks the stages whose sync finished as done and lets the next ones run. Call it
+     * whenever the sync state changed.
+     */
+    void update() {
+        final long now = System.currentTimeMillis();
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            Stage stage = mStages.get(i);
+            if (stage.state == STATE_RUNNING && isStageDone(stage, now)) {
+                stage.state = STATE_DONE;
+                mRunning--;
+                mDone++;
+                if (stage.startTime != 0) {
+                    mTimed++;
+                    mTimedDuration += now - stage.startTime;
+                    if (LDEBUG) {
+                        Log.d(TAG, "initial sync of " + stage.authority + " took "
+                                + (now - stage.startTime) + "ms");
+                    }
+                }
+            }
+        }
+        for (int i = 0, n = mStages.size(); i < n && mRunning < MAX_CONCURRENT_STAGES; i++) {
+            Stage stage = mStages.get(i);
+            if (stage.state == STATE_QUEUED) {
+                release(stage, now, true);
+            }
+        }
+        scheduleTimeout(now);
+    }
+
+    /**
+     * Requests the syncs of the stages still held back, all at once, and stops.
+     */
+    void releaseAll() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final long now = System.currentTimeMillis();
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            Stage stage = mStages.get(i);
+            if (stage.state == STATE_QUEUED) {
+                release(stage, now, true);
+            }
+        }
+    }
+
+    private void release(Stage stage, long now, boolean request) {
+        stage.state = STATE_RUNNING;
+        stage.requested = request;
+        stage.releaseTime = now;
+        // seen active before it was held back doesn't count
+        stage.startTime = 0;
+        mRunning++;
+        if (request) {
+            // not manual, so it still follows the settings if the user changes them
+            final long start = IpcAuditor.begin();
+            ContentResolver.requestSync(mAccount, stage.authority, new Bundle());
+            IpcAuditor.end("ContentResolver.requestSync", start);
+        }
+    }
+
+    private void scheduleTimeout(long now) {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            Stage stage = mStages.get(i);
+            if (stage.state == STATE_RUNNING) {
+                deadline = Math.min(deadline, stage.releaseTime + STAGE_TIMEOUT);
+            }
+        }
+        if (deadline != Long.MAX_VALUE) {
+            mHandler.postDelayed(mTimeoutRunnable, Math.max(0, deadline - now));
+        }
+    }
+
+    private boolean isStageDone(Stage stage, long now) {
+        if (now - stage.releaseTime >= STAGE_TIMEOUT) {
+            Log.w(TAG, "initial sync of " + stage.authority + " timed out");
+            return true;
+        }
+        // a requested sync must leave a result newer than the request, the one queued by
+        // adding the account is the account's first result
+        return isSyncDone(stage, stage.requested ? stage.releaseTime : 0);
+    }
+
+    private boolean isSyncDone(Stage stage, long since) {
+        SyncStateRepository.AuthorityState state =
+                mSyncState.getAuthorityState(mAccount, stage.authority);
+        if (mSyncState.isActive(mAccount, stage.authority) && !state.initialize) {
+            if (stage.startTime == 0) {
+                stage.startTime = System.currentTimeMillis();
+            }
+            return false;
+        }
+        if (state.pending || state.initialize) {
+            return false;
+        }
+        final long lastResult = Math.max(state.lastSuccessTime, state.lastFailureTime);
+        return lastResult != 0 && lastResult >= since;
+    }
+
+    private Stage findStage(String authority) {
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            if (mStages.get(i).authority.equals(authority)) {
+                return mStages.get(i);
+            }
+        }
+        return null;
+    }
+}
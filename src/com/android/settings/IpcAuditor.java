@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Counts and times the binder calls that the account screens make to the sync manager,
+ * the account manager and the package manager, by thread and by calling method.
+ *
+ * Call sites wrap each call:
+ * <pre>
+ *   final long start = IpcAuditor.begin();
+ *   Account[] accounts = AccountManager.get(context).getAccounts();
+ *   IpcAuditor.end("AccountManager.getAccounts", start);
+ * </pre>
+ * and the screens put their startup and every refresh in a scope. When a scope made more
+ * main thread calls than its budget the statistics are logged, and in strict mode an
+ * IllegalStateException is thrown so test runs fail on the regression.
+ *
+ * Everything is off unless enabled before the process starts:
+ * <pre>
+ *   adb shell setprop log.tag.AccountSettingsIpc VERBOSE   # count, log every scope
+ *   adb shell setprop debug.acctipc.startup 40             # startup budget
+ *   adb shell setprop debug.acctipc.refresh AccountSyncSettings=12,8
+ *   adb shell setprop debug.acctipc.strict 1               # throw over budget
+ * </pre>
+ * A budget is either a number for all screens or a comma separated list of
+ * screen=number entries with an optional plain number as the default. 0 means none.
+ */
+class IpcAuditor {
+    private static final String TAG = "AccountSettings";
+    private static final String AUDIT_TAG = "AccountSettingsIpc";
+    private static final String PROP_STARTUP_BUDGET = "debug.acctipc.startup";
+    private static final String PROP_REFRESH_BUDGET = "debug.acctipc.refresh";
+    private static final String PROP_STRICT = "debug.acctipc.strict";
+
+    private static final boolean VERBOSE = Log.isLoggable(AUDIT_TAG, Log.VERBOSE);
+    private static final String STARTUP_BUDGETS = SystemProperties.get(PROP_STARTUP_BUDGET);
+    private static final String REFRESH_BUDGETS = SystemProperties.get(PROP_REFRESH_BUDGET);
+    private static final boolean STRICT = SystemProperties.getBoolean(PROP_STRICT, false);
+    static final boolean ENABLED = VERBOSE || !TextUtils.isEmpty(STARTUP_BUDGETS)
+            || !TextUtils.isEmpty(REFRESH_BUDGETS);
+
+    /** Frames of these classes are skipped when looking for the calling method. */
+    private static final String[] PLUMBING_CLASSES = {
+        IpcAuditor.class.getName(),
+        SyncStateRepository.class.getName(),
+        ActiveSyncIndex.class.getName(),
+    };
+
+    private static class CallStats {
+        final String call;
+        final String thread;
+        final String caller;
+        int count;
+        long totalNanos;
+        long maxNanos;
+
+        CallStats(String call, String thread, String caller) {
+            this.call = call;
+            this.thread = thread;
+            this.caller = caller;
+        }
+    }
+
+    /**
+     * The startup of a screen or one of its refreshes.
+     */
+    static final class Scope {
+        final String name;
+        final String kind;
+        final int budget;
+        final int startCalls;
+        final long startNanos;
+
+        private Scope(String name, String kind, int budget, int startCalls, long startNanos) {
+            this.name = name;
+            this.kind = kind;
+            this.budget = budget;
+            this.startCalls = startCalls;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static final HashMap<String, CallStats> sStats = new HashMap<String, CallStats>();
+    private static int sMainThreadCalls;
+    private static long sMainThreadNanos;
+
+    private IpcAuditor() {
+    }
+
+    /**
+     * Returns the start time to pass to end(), or 0 if auditing is off.
+     */
+    static long begin() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a call that started at the time returned by begin().
+     * @param call the name of the remote method, for example "ContentResolver.getSyncStatus"
+     */
+    static void end(String call, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        final long duration = System.nanoTime() - start;
+        final boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        final String thread = mainThread ? "main" : Thread.currentThread().getName();
+        final String caller = findCaller();
+        final String key = call + "\t" + thread + "\t" + caller;
+        synchronized (sStats) {
+            CallStats stats = sStats.get(key);
+            if (stats == null) {
+                stats = new CallStats(call, thread, caller);
+                sStats.put(key, stats);
+            }
+            stats.count++;
+            stats.totalNanos += duration;
+            stats.maxNanos = Math.max(stats.maxNanos, duration);
+            if (mainThread) {
+                sMainThreadCalls++;
+                sMainThreadNanos += duration;
+            }
+        }
+    }
+
+    private static String findCaller() {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            final String className = frame.getClassName();
+            boolean plumbing = false;
+            for (String skipped : PLUMBING_CLASSES) {
+                // also matches their inner classes
+                if (className.startsWith(skipped)) {
+                    plumbing = true;
+                    break;
+                }
+            }
+            if (!plumbing) {
+                return className.substring(className.lastIndexOf('.') + 1) + "."
+                        + frame.getMethodName();
+            }
+        }
+        return "unknown";
+    }
+
+    /**
+     * Starts the scope of a screen's startup, from onCreate() to its first refresh.
+     * @return the scope to pass to endScope(), or null if auditing is off
+     */
+    static Scope beginStartup(Object screen) {
+        return beginScope(screen, "startup", STARTUP_BUDGETS);
+    }
+
+    /**
+     * Starts the scope of one refresh of a screen.
+     * @return the scope to pass to endScope(), or null if auditing is off
+     */
+    static Scope beginRefresh(Object screen) {
+        return beginScope(screen, "refresh", REFRESH_BUDGETS);
+    }
+
+    private static Scope beginScope(Object screen, String kind, String budgets) {
+        if (!ENABLED) {
+            return null;
+        }
+        final String name = screen.getClass().getSimpleName();
+        synchronized (sStats) {
+            return new Scope(name, kind, parseBudget(budgets, name), sMainThreadCalls,
+                    sMainThreadNanos);
+        }
+    }
+
+    /**
+     * Ends a scope and checks its main thread calls against the budget.
+     * @throws IllegalStateException in strict mode, if the budget was exceeded
+     */
+    static void endScope(Scope scope) {
+        if (scope == null) {
+            return;
+        }
+        final int calls;
+        final long nanos;
+        synchronized (sStats) {
+            calls = sMainThreadCalls - scope.startCalls;
+            nanos = sMainThreadNanos - scope.startNanos;
+        }
+        final String summary = scope.name + " " + scope.kind + " made " + calls
+                + " main thread IPCs in " + nanos / 1000000 + "ms";
+        if (scope.budget > 0 && calls > scope.budget) {
+            final String message = summary + ", budget " + scope.budget;
+            Log.w(TAG, message);
+            logStats();
+            if (STRICT) {
+                throw new IllegalStateException(message);
+            }
+        } else if (VERBOSE) {
+            Log.v(AUDIT_TAG, summary);
+        }
+    }
+
+    /**
+     * Returns the budget of a screen from a budget property.
+     */
+    private static int parseBudget(String budgets, String screen) {
+        int budget = 0;
+        if (TextUtils.isEmpty(budgets)) {
+            return budget;
+        }
+        for (String entry : budgets.split(",")) {
+            final int separator = entry.indexOf('=');
+            try {
+                if (separator < 0) {
+                    budget = Integer.parseInt(entry.trim());
+                } else if (entry.substring(0, separator).trim().equals(screen)) {
+                    return Integer.parseInt(entry.substring(separator + 1).trim());
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Bad IPC budget entry " + entry);
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Logs the calls recorded so far, the most expensive first.
+     */
+    static void logStats() {
+        ArrayList<CallStats> all;
+        synchronized (sStats) {
+            all = new ArrayList<CallStats>(sStats.size());
+            for (CallStats stats : sStats.values()) {
+                CallStats copy = new CallStats(stats.call, stats.thread, stats.caller);
+                copy.count = stats.count;
+                copy.totalNanos = stats.totalNanos;
+                copy.maxNanos = stats.maxNanos;
+                all.add(copy);
+            }
+        }
+        Collections.sort(all, new Comparator<CallStats>() {
+            public int compare(CallStats a, CallStats b) {
+                return a.totalNanos < b.totalNanos ? 1 : a.totalNanos > b.totalNanos ? -1 : 0;
+            }
+        });
+        for (CallStats stats : all) {
+            Log.i(AUDIT_TAG, stats.call + " on " + stats.thread + " from " + stats.caller
+                    + ": " + stats.count + " calls, " + stats.totalNanos / 1000 + "us total, "
+                    + stats.maxNanos / 1000 + "us max");
+        }
+    }
+}
@@ -18,37 +18,60 @@ package com.android.settings;
 
 import com.android.providers.subscribedfeeds.R;
 
-import android.accounts.AccountManager;
 import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AccountManagerCallback;
+import android.accounts.AccountManagerFuture;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.SyncInfo;
+import android.app.ProgressDialog;
 import android.content.ContentResolver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SyncAdapterType;
-import android.content.SyncStatusInfo;
 import android.graphics.drawable.Drawable;
-import android.net.ConnectivityManager;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Parcelable;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.view.ContextMenu;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.TextView;
-import android.util.Log;
+import android.widget.Toast;
 
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class ManageAccountsSettings extends AccountPreferenceBase implements View.OnClickListener {
     private static final String AUTO_SYNC_CHECKBOX_KEY = "syncAutomaticallyCheckBox";
     private static final String MANAGE_ACCOUNTS_CATEGORY_KEY = "manageAccountsCategory";
     private static final String BACKGROUND_DATA_CHECKBOX_KEY = "backgroundDataCheckBox";
+    private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);
     private static final int DIALOG_DISABLE_BACKGROUND_DATA = 1;
+    private static final int DIALOG_REMOVE_ACCOUNTS = 2;
+    private static final int DIALOG_REMOVAL_FAILED = 3;
+    private static final int MENU_ENABLE_TYPE_ID = 1;
+    private static final int MENU_DISABLE_TYPE_ID = 2;
+    private static final int MENU_SEARCH_ID = 3;
+    private static final int MENU_REMOVE_ACCOUNTS_ID = 4;
+    private static final int MENU_APPLY_PROFILE_ID = 5;
+    /** Number of accounts being removed at the same time. */
+    private static final int MAX_CONCURRENT_REMOVALS = 3;
+    private static final String EXPANDED_TYPES_KEY = "expandedAccountTypes";
+    private static final String REMOVABLE_ACCOUNTS_KEY = "removableAccounts";
+    /** Groups with more accounts than this start out collapsed. */
+    private static final int MAX_ACCOUNTS_EXPANDED = 3;
 
     private CheckBoxPreference mBackgroundDataCheckBox;
     private PreferenceCategory mManageAccountsCategory;
@@ -56,6 +79,41 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
     private TextView mErrorInfoView;
     private Button mAddAccountButton;
     private CheckBoxPreference mAutoSyncCheckbox;
+    private Account[] mAccounts = new Account[0];
+    private String mContextMenuAccountType;
+    private final AccountIndex mAccountIndex = new AccountIndex(false);
+    private final HashMap<Account, AccountPreference> mAccountPreferences =
+            new HashMap<Account, AccountPreference>();
+    private final Collator mCollator = Collator.getInstance();
+    private final HashMap<String, AccountGroup> mGroups = new HashMap<String, AccountGroup>();
+    // groups created since the last call to expandNewGroups()
+    private final ArrayList<AccountGroup> mNewGroups = new ArrayList<AccountGroup>();
+    // expanded types from the saved instance state, or null
+    private ArrayList<String> mRestoredExpandedTypes;
+    // account names and type labels of the accounts in mAccountPreferences
+    private final PrefixIndex<Account> mSearchIndex = new PrefixIndex<Account>();
+    // accounts matching the search query, or null when not searching
+    private HashSet<Account> mSearchMatches;
+    // accounts offered by DIALOG_REMOVE_ACCOUNTS, the dialog's list keeps which are checked
+    private Account[] mRemovableAccounts;
+    private AccountOperationQueue<Account, Boolean> mRemoval;
+    private ProgressDialog mRemovalProgress;
+    // accounts that couldn't be removed, with the reasons, for DIALOG_REMOVAL_FAILED
+    private String mRemovalFailures;
+
+    /**
+     * The accounts of one type below their header. The preferences of a collapsed group
+     * are kept but not added to the list; their status is still kept up to date from the
+     * cached sync state, which only rebinds the rows that are shown.
+     */
+    private static class AccountGroup {
+        final AccountTypeHeaderPreference header;
+        final ArrayList<AccountPreference> accounts = new ArrayList<AccountPreference>();
+
+        AccountGroup(AccountTypeHeaderPreference header) {
+            this.header = header;
+        }
+    }
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -63,6 +121,7 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
 
         setContentView(R.layout.manage_accounts_screen);
         addPreferencesFromResource(R.xml.manage_accounts_settings);
+        setUpSearchField();
 
         mErrorInfoView = (TextView)findViewById(R.id.sync_settings_error_info);
         mErrorInfoView.setVisibility(View.GONE);
@@ -77,23 +136,95 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
         mAuthorities = getIntent().getStringArrayExtra(AUTHORITIES_FILTER_KEY);
         mAddAccountButton = (Button) findViewById(R.id.add_account_button);
         mAddAccountButton.setOnClickListener(this);
+        registerForContextMenu(getListView());
+        if (icicle != null) {
+            mRestoredExpandedTypes = icicle.getStringArrayList(EXPANDED_TYPES_KEY);
+            // the restored dialog must offer the accounts its checked positions refer to
+            Parcelable[] removable = icicle.getParcelableArray(REMOVABLE_ACCOUNTS_KEY);
+            if (removable != null) {
+                mRemovableAccounts = new Account[removable.length];
+                System.arraycopy(removable, 0, mRemovableAccounts, 0, removable.length);
+            }
+        }
 
-        AccountManager.get(this).addOnAccountsUpdatedListener(this, null, true);
+        // the snapshot is written without an authorities filter, so only use it then
+        AccountListSnapshot snapshot = icicle == null && mAuthorities == null
+                ? AccountListSnapshot.read(this) : null;
+        listenForAccountUpdates(snapshot == null);
         updateAuthDescriptions();
+        if (snapshot != null) {
+            showSnapshot(snapshot);
+            markSyncStateShown();
+            // fetch the real accounts and states once the screen is drawn
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                public boolean queueIdle() {
+                    if (!isFinishing()) {
+                        onAccountsUpdated(mSyncState.getAccounts());
+                    }
+                    return false;
+                }
+            });
+        }
     }
 
     @Override
-    public void onDestroy() {
-        AccountManager.get(this).removeOnAccountsUpdatedListener(this);
-        super.onDestroy();
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        ArrayList<String> expandedTypes = new ArrayList<String>();
+        for (AccountGroup group : mGroups.values()) {
+            if (group.header.isExpanded()) {
+                expandedTypes.add(group.header.getAccountType());
+            }
+        }
+        outState.putStringArrayList(EXPANDED_TYPES_KEY, expandedTypes);
+        if (mRemovableAccounts != null) {
+            outState.putParcelableArray(REMOVABLE_ACCOUNTS_KEY, mRemovableAccounts);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mAuthorities == null) {
+            AccountListSnapshot snapshot = new AccountListSnapshot();
+            snapshot.masterSyncAutomatically = mAutoSyncCheckbox.isChecked();
+            snapshot.backgroundDataSetting = mBackgroundDataCheckBox.isChecked();
+            for (int i = 0, n = mAccountIndex.size(); i < n; i++) {
+                AccountPreference accountPref =
+                        mAccountPreferences.get(mAccountIndex.get(i).account);
+                snapshot.add(accountPref.getAccount(), accountPref.getAuthorities(),
+                        accountPref.getSyncStatus());
+            }
+            snapshot.writeAsync(this);
+        }
+    }
+
+    /**
+     * Shows the accounts and states from the last run without any IPC besides loading
+     * the account icons.
+     */
+    private void showSnapshot(AccountListSnapshot snapshot) {
+        mAccounts = snapshot.getAccounts();
+        mBackgroundDataCheckBox.setChecked(snapshot.backgroundDataSetting);
+        mAutoSyncCheckbox.setChecked(snapshot.masterSyncAutomatically);
+        for (AccountListSnapshot.Entry entry : snapshot.entries) {
+            mAccountIndex.insert(entry.account);
+            AccountPreference preference = addAccountPreference(entry.account,
+                    entry.authorities);
+            preference.setSyncStatus(entry.status);
+        }
+        expandNewGroups();
+        boolean anySyncFailed = false;
+        for (AccountGroup group : mGroups.values()) {
+            anySyncFailed |= updateGroupHeader(group);
+        }
+        mErrorInfoView.setVisibility(anySyncFailed ? View.VISIBLE : View.GONE);
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferences, Preference preference) {
         if (preference == mBackgroundDataCheckBox) {
-            ConnectivityManager connManager =
-                    (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            boolean oldBackgroundDataSetting = connManager.getBackgroundDataSetting();
+            boolean oldBackgroundDataSetting = mSyncState.getBackgroundDataSetting();
             boolean backgroundDataSetting = mBackgroundDataCheckBox.isChecked();
             if (oldBackgroundDataSetting != backgroundDataSetting) {
                 if (backgroundDataSetting) {
@@ -107,14 +238,162 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
                 }
             }
         } else if (preference == mAutoSyncCheckbox) {
-            ContentResolver.setMasterSyncAutomatically(mAutoSyncCheckbox.isChecked());
-            onSyncStateUpdated();
+            final boolean sync = mAutoSyncCheckbox.isChecked();
+            setMasterSyncAutomatically(sync);
+            showMasterSyncAutomatically(sync);
+        } else if (preference instanceof AccountTypeHeaderPreference) {
+            AccountGroup group =
+                    mGroups.get(((AccountTypeHeaderPreference) preference).getAccountType());
+            setGroupExpanded(group, !group.header.isExpanded());
+            updateGroupStatus(group);
+            updateErrorInfo();
+        } else if (preference instanceof AccountPreference) {
+            // hand what we already know to AccountSyncSettings so it can draw at once;
+            // the preference launches its intent after we return
+            Account account = ((AccountPreference) preference).getAccount();
+            preference.getIntent().putExtra(AccountSyncSnapshot.EXTRA_KEY,
+                    AccountSyncSnapshot.capture(this, mSyncState, account,
+                            getSyncableAuthorities(account)));
+            return false;
         } else {
             return false;
         }
         return true;
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        menu.add(0, MENU_SEARCH_ID, 0, getString(R.string.search_menu))
+                .setIcon(android.R.drawable.ic_menu_search);
+        menu.add(0, MENU_REMOVE_ACCOUNTS_ID, 0, getString(R.string.remove_accounts_menu))
+                .setIcon(android.R.drawable.ic_menu_delete);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(MENU_REMOVE_ACCOUNTS_ID).setEnabled(
+                mAccountIndex.size() > 0 && mRemoval == null);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_SEARCH_ID:
+                onSearchRequested();
+                return true;
+            case MENU_REMOVE_ACCOUNTS_ID:
+                // the list of accounts is built anew each time
+                removeDialog(DIALOG_REMOVE_ACCOUNTS);
+                mRemovableAccounts = null;
+                showDialog(DIALOG_REMOVE_ACCOUNTS);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onSearchQueryChanged(String query) {
+        applySearch();
+    }
+
+    /**
+     * Shows the accounts matching the search query, whether their groups are expanded or
+     * not, and hides the headers of groups without a match.
+     */
+    private void applySearch() {
+        mSearchMatches = isSearching() ? mSearchIndex.query(getSearchQuery()) : null;
+        for (AccountGroup group : mGroups.values()) {
+            updateGroupVisibility(group);
+        }
+    }
+
+    @Override
+    public void onCreateContextMenu(ContextMenu menu, View v,
+            ContextMenu.ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+        AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) menuInfo;
+        Object item = getListView().getItemAtPosition(info.position);
+        String accountType;
+        if (item instanceof AccountPreference) {
+            accountType = ((AccountPreference) item).getAccount().type;
+        } else if (item instanceof AccountTypeHeaderPreference) {
+            accountType = ((AccountTypeHeaderPreference) item).getAccountType();
+        } else {
+            return;
+        }
+        CharSequence label = getLabelForType(accountType);
+        if (label == null) {
+            label = accountType;
+        }
+        mContextMenuAccountType = accountType;
+        menu.setHeaderTitle(label);
+        menu.add(0, MENU_ENABLE_TYPE_ID, 0, getString(R.string.sync_enable_all_of_type, label));
+        menu.add(0, MENU_DISABLE_TYPE_ID, 0, getString(R.string.sync_disable_all_of_type, label));
+        if (SyncProfile.exists(this, accountType)) {
+            menu.add(0, MENU_APPLY_PROFILE_ID, 0,
+                    getString(R.string.sync_profile_apply_to_type, label));
+        }
+    }
+
+    @Override
+    public boolean onContextItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_ENABLE_TYPE_ID:
+                setSyncForAccountType(mContextMenuAccountType, true);
+                return true;
+            case MENU_DISABLE_TYPE_ID:
+                setSyncForAccountType(mContextMenuAccountType, false);
+                return true;
+            case MENU_APPLY_PROFILE_ID:
+                applySyncProfile(mContextMenuAccountType);
+                return true;
+        }
+        return super.onContextItemSelected(item);
+    }
+
+    /**
+     * Applies the saved sync profile of an account type to every account of the type in
+     * one batch, so the syncs it causes are requested once and the list refreshes once.
+     */
+    private void applySyncProfile(String accountType) {
+        SyncProfile profile = SyncProfile.load(this, accountType);
+        if (profile == null) {
+            Toast.makeText(this, R.string.sync_profile_unreadable, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        SyncSettingsBatch batch = new SyncSettingsBatch(this);
+        int accounts = 0;
+        for (Account account : mAccounts) {
+            if (profile.addTo(batch, account)) {
+                accounts++;
+            }
+        }
+        applyBatch(batch);
+        Toast.makeText(this, getString(R.string.sync_profile_applied, accounts),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Turns auto-sync on or off for every authority of every account of the given type,
+     * refreshing the list once at the end.
+     */
+    private void setSyncForAccountType(String accountType, boolean syncOn) {
+        SyncSettingsBatch batch = new SyncSettingsBatch(this);
+        for (Account account : mAccounts) {
+            if (!account.type.equals(accountType)) {
+                continue;
+            }
+            for (String authority : getSyncableAuthorities(account)) {
+                batch.setSyncAutomatically(account, authority, syncOn);
+            }
+        }
+        applyBatch(batch);
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
@@ -136,95 +415,253 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
                             })
                         .setNegativeButton(android.R.string.cancel, null)
                         .create();
+            case DIALOG_REMOVE_ACCOUNTS:
+                return createRemoveAccountsDialog();
+            case DIALOG_REMOVAL_FAILED:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.remove_accounts_failed_title)
+                        .setIcon(android.R.drawable.ic_dialog_alert)
+                        .setMessage(getString(R.string.remove_accounts_failed_message,
+                                mRemovalFailures))
+                        .setPositiveButton(android.R.string.ok, null)
+                        .create();
         }
 
         return null;
     }
 
+    /**
+     * Lets the user check the accounts to remove, in the order of the list. A dialog
+     * restored after the activity was recreated offers the accounts it offered before.
+     */
+    private Dialog createRemoveAccountsDialog() {
+        if (mRemovableAccounts == null) {
+            mRemovableAccounts = new Account[mAccountIndex.size()];
+            for (int i = 0; i < mRemovableAccounts.length; i++) {
+                mRemovableAccounts[i] = mAccountIndex.get(i).account;
+            }
+        }
+        final int n = mRemovableAccounts.length;
+        CharSequence[] items = new CharSequence[n];
+        for (int i = 0; i < n; i++) {
+            final Account account = mRemovableAccounts[i];
+            CharSequence label = getLabelForType(account.type);
+            items[i] = getString(R.string.remove_accounts_item, account.name,
+                    label != null ? label : account.type);
+        }
+        return new AlertDialog.Builder(this)
+                .setTitle(R.string.remove_accounts_title)
+                .setMultiChoiceItems(items, null, null)
+                .setPositiveButton(R.string.remove_accounts_button,
+                        new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        // the list restores its checked items itself, a copy could be stale
+                        SparseBooleanArray checked =
+                                ((AlertDialog) dialog).getListView().getCheckedItemPositions();
+                        ArrayList<Account> accounts = new ArrayList<Account>();
+                        for (int i = 0; i < mRemovableAccounts.length; i++) {
+                            if (checked.get(i)) {
+                                accounts.add(mRemovableAccounts[i]);
+                            }
+                        }
+                        if (!accounts.isEmpty()) {
+                            removeAccounts(accounts);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+
+    /**
+     * Removes the accounts, a few at a time, behind a progress dialog. The account
+     * changes this causes are held back and the list is updated once at the end.
+     */
+    private void removeAccounts(final ArrayList<Account> accounts) {
+        mRemovalProgress = new ProgressDialog(this);
+        mRemovalProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mRemovalProgress.setMessage(getString(R.string.remove_accounts_progress));
+        mRemovalProgress.setCancelable(false);
+        mRemovalProgress.setMax(accounts.size());
+        mRemovalProgress.show();
+
+        final StringBuilder failures = new StringBuilder();
+        mRemoval = new AccountOperationQueue<Account, Boolean>(accounts,
+                MAX_CONCURRENT_REMOVALS, new AccountOperationQueue.Listener<Account>() {
+            public void onOperationStarted(int position, Account account) {
+            }
+
+            public void onOperationFinished(int position, Account account, String error) {
+                mRemovalProgress.incrementProgressBy(1);
+                if (error != null) {
+                    failures.append('\n').append(account.name);
+                    if (error.length() > 0) {
+                        failures.append(": ").append(error);
+                    }
+                }
+            }
+
+            public void onQueueFinished(int succeeded, int failed, long elapsedMillis) {
+                if (LDEBUG) {
+                    Log.d(TAG, "removed " + succeeded + " accounts in " + elapsedMillis
+                            + "ms, " + failed + " failed");
+                }
+                mRemoval = null;
+                mRemovalProgress.dismiss();
+                mRemovalProgress = null;
+                onAccountsUpdated(mSyncState.getAccounts());
+                if (failed > 0) {
+                    mRemovalFailures = failures.toString();
+                    removeDialog(DIALOG_REMOVAL_FAILED);
+                    showDialog(DIALOG_REMOVAL_FAILED);
+                }
+            }
+        }) {
+            @Override
+            protected AccountManagerFuture<Boolean> startOperation(Account account,
+                    AccountManagerCallback<Boolean> callback) {
+                final long start = IpcAuditor.begin();
+                AccountManagerFuture<Boolean> future = AccountManager.get(
+                        ManageAccountsSettings.this).removeAccount(account, callback,
+                        null /* handler */);
+                IpcAuditor.end("AccountManager.removeAccount", start);
+                return future;
+            }
+
+            @Override
+            protected boolean isSuccess(Boolean result) {
+                return Boolean.TRUE.equals(result);
+            }
+        };
+        mRemoval.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mRemoval != null) {
+            // the account manager finishes the removals already sent
+            mRemoval.cancel();
+            mRemovalProgress.dismiss();
+        }
+        super.onDestroy();
+    }
+
     private void setBackgroundDataInt(boolean enabled) {
-        ConnectivityManager connManager =
-                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        connManager.setBackgroundDataSetting(enabled);
+        mSyncState.setBackgroundDataSetting(enabled);
     }
 
     @Override
     protected void onSyncStateUpdated() {
-        // Set background connection state
-        ConnectivityManager connManager =
-                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        boolean backgroundDataSetting = connManager.getBackgroundDataSetting();
-        mBackgroundDataCheckBox.setChecked(backgroundDataSetting);
-        boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
-        mAutoSyncCheckbox.setChecked(masterSyncAutomatically);
-
-        // iterate over all the preferences, setting the state properly for each
-        SyncInfo currentSync = ContentResolver.getCurrentSync();
+        onSyncStateUpdated(SyncStateRepository.SYNC_STATE_ALL);
+    }
 
-        boolean anySyncFailed = false; // true if sync on any account failed
+    @Override
+    protected void onSyncStateUpdated(int which) {
+        final boolean settings = (which & ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS) != 0;
+        if (settings) {
+            // Set background connection state
+            mBackgroundDataCheckBox.setChecked(mSyncState.getBackgroundDataSetting());
+            mAutoSyncCheckbox.setChecked(mSyncState.getMasterSyncAutomatically());
+        }
 
-        // only track userfacing sync adapters when deciding if account is synced or not
-        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
-        HashSet<String> userFacing = new HashSet<String>();
-        for (int k = 0, n = syncAdapters.length; k < n; k++) {
-            final SyncAdapterType sa = syncAdapters[k];
-            if (sa.isUserVisible()) {
-                userFacing.add(sa.authority);
+        // a sync starting or stopping can't change what a collapsed group's header shows
+        final boolean summary = (which & ~ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE) != 0;
+        for (AccountGroup group : mGroups.values()) {
+            if (group.header.isExpanded()) {
+                updateGroupStatus(group);
+            } else if (summary) {
+                updateGroupSummary(group);
             }
         }
-        for (int i = 0, count = mManageAccountsCategory.getPreferenceCount(); i < count; i++) {
-            Preference pref = mManageAccountsCategory.getPreference(i);
-            if (! (pref instanceof AccountPreference)) {
-                continue;
-            }
+        updateErrorInfo();
+    }
 
-            AccountPreference accountPref = (AccountPreference) pref;
-            Account account = accountPref.getAccount();
-            int syncCount = 0;
-            boolean syncIsFailing = false;
-            final ArrayList<String> authorities = accountPref.getAuthorities();
-            if (authorities != null) {
-                for (String authority : authorities) {
-                    SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
-                    boolean syncEnabled = ContentResolver.getSyncAutomatically(account, authority)
-                            && masterSyncAutomatically
-                            && backgroundDataSetting
-                            && (ContentResolver.getIsSyncable(account, authority) > 0);
-                    boolean authorityIsPending = ContentResolver.isSyncPending(account, authority);
-                    boolean activelySyncing = currentSync != null
-                            && currentSync.authority.equals(authority)
-                            && new Account(currentSync.account.name, currentSync.account.type).equals(account);
-                    boolean lastSyncFailed = status != null
-                            && syncEnabled
-                            && status.lastFailureTime != 0
-                            && status.getLastFailureMesgAsInt(0)
-                               != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
-                    if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
-                        syncIsFailing = true;
-                        anySyncFailed = true;
-                    }
-                    syncCount += syncEnabled && userFacing.contains(authority) ? 1 : 0;
-                }
+    /**
+     * Shows the effect of the master auto-sync switch without a refresh. Switched off, no
+     * account syncs, which needs nothing from the sync manager; switched on, the accounts
+     * go back to what the cached sync state says.
+     */
+    private void showMasterSyncAutomatically(boolean sync) {
+        for (AccountGroup group : mGroups.values()) {
+            if (sync && group.header.isExpanded()) {
+                updateGroupStatus(group);
+            } else if (sync) {
+                updateGroupSummary(group);
             } else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "no syncadapters found for " + account);
+                for (int i = 0, n = group.accounts.size(); i < n; i++) {
+                    group.accounts.get(i).setSyncStatus(AccountPreference.SYNC_DISABLED);
                 }
+                updateGroupHeader(group);
             }
-            int syncStatus = AccountPreference.SYNC_DISABLED;
-            if (syncIsFailing) {
-                syncStatus = AccountPreference.SYNC_ERROR;
-            } else if (syncCount == 0) {
-                syncStatus = AccountPreference.SYNC_DISABLED;
-            } else if (syncCount > 0) {
-                syncStatus = AccountPreference.SYNC_ENABLED;
+        }
+        updateErrorInfo();
+    }
+
+    /**
+     * Updates the status of a group's accounts and its header.
+     */
+    private void updateGroupStatus(AccountGroup group) {
+        for (int i = 0, n = group.accounts.size(); i < n; i++) {
+            AccountPreference accountPref = group.accounts.get(i);
+            accountPref.setSyncStatus(mSyncState.getAccountSyncStatus(accountPref.getAccount(),
+                    accountPref.getAuthorities()));
+        }
+        updateGroupHeader(group);
+    }
+
+    /**
+     * Updates the header of a collapsed group from the cheaper summary status. Its rows
+     * aren't bound, so setting their status only records it for the header, the error
+     * banner and the account list snapshot; expanding the group computes the full one.
+     */
+    private void updateGroupSummary(AccountGroup group) {
+        for (int i = 0, n = group.accounts.size(); i < n; i++) {
+            AccountPreference accountPref = group.accounts.get(i);
+            accountPref.setSyncStatus(mSyncState.getAccountSummaryStatus(
+                    accountPref.getAccount(), accountPref.getAuthorities()));
+        }
+        updateGroupHeader(group);
+    }
+
+    /**
+     * Shows the totals of the group's account statuses in its header.
+     * @return true if any account of the group has a sync problem
+     */
+    private boolean updateGroupHeader(AccountGroup group) {
+        int enabled = 0;
+        boolean hasError = false;
+        for (int i = 0, n = group.accounts.size(); i < n; i++) {
+            int status = group.accounts.get(i).getSyncStatus();
+            if (status != AccountPreference.SYNC_DISABLED) {
+                enabled++;
             }
-            accountPref.setSyncStatus(syncStatus);
+            hasError |= status == AccountPreference.SYNC_ERROR;
         }
+        group.header.setAggregate(group.accounts.size(), enabled, hasError);
+        return hasError;
+    }
 
+    /**
+     * Shows the sync problem banner if an account has a sync problem.
+     */
+    private void updateErrorInfo() {
+        boolean anySyncFailed = false; // true if sync on any account failed
+        for (AccountGroup group : mGroups.values()) {
+            for (int i = 0, n = group.accounts.size(); i < n && !anySyncFailed; i++) {
+                anySyncFailed = group.accounts.get(i).getSyncStatus()
+                        == AccountPreference.SYNC_ERROR;
+            }
+        }
         mErrorInfoView.setVisibility(anySyncFailed ? View.VISIBLE : View.GONE);
     }
 
     public void onAccountsUpdated(Account[] accounts) {
-        mManageAccountsCategory.removeAll();
+        if (mRemoval != null) {
+            // updated once the removals are through
+            return;
+        }
+        mAccounts = accounts;
+        ArrayList<Account> shownAccounts = new ArrayList<Account>(accounts.length);
         for (int i = 0, n = accounts.length; i < n; i++) {
             final Account account = accounts[i];
             final ArrayList<String> auths = getAuthoritiesForAccountType(account.type);
@@ -241,21 +678,148 @@ public class ManageAccountsSettings extends AccountPreferenceBase implements Vie
             }
 
             if (showAccount) {
-                Drawable icon = getDrawableForType(account.type);
-                AccountPreference preference = new AccountPreference(this, account, icon, auths);
-                mManageAccountsCategory.addPreference(preference);
+                shownAccounts.add(account);
             }
         }
+
+        // only touch the preferences of accounts that came or went
+        ArrayList<Account> added = new ArrayList<Account>();
+        ArrayList<Account> removed = new ArrayList<Account>();
+        mAccountIndex.update(shownAccounts.toArray(new Account[shownAccounts.size()]),
+                added, removed);
+        for (Account account : removed) {
+            removeAccountPreference(mAccountPreferences.remove(account));
+        }
+        for (AccountPreference pref : mAccountPreferences.values()) {
+            // the sync adapters of a type may have changed
+            pref.setAuthorities(getAuthoritiesForAccountType(pref.getAccount().type));
+        }
+        for (Account account : added) {
+            addAccountPreference(account, getAuthoritiesForAccountType(account.type));
+        }
+        expandNewGroups();
+        if (mSearchMatches != null) {
+            applySearch();
+        }
         onSyncStateUpdated();
     }
 
+    private AccountPreference addAccountPreference(Account account,
+            ArrayList<String> authorities) {
+        AccountGroup group = mGroups.get(account.type);
+        if (group == null) {
+            CharSequence label = getLabelForType(account.type);
+            AccountTypeHeaderPreference header = new AccountTypeHeaderPreference(this,
+                    account.type, label, getDrawableForType(account.type));
+            header.setGroupKey(mCollator.getCollationKey(
+                    label != null ? label.toString() : account.type));
+            group = new AccountGroup(header);
+            mGroups.put(account.type, group);
+            mNewGroups.add(group);
+            if (mSearchMatches == null) {
+                mManageAccountsCategory.addPreference(header);
+            }
+        }
+        Drawable icon = getDrawableForType(account.type);
+        AccountPreference preference = new AccountPreference(this, account, icon, authorities);
+        preference.setSortKey(mAccountIndex.getSortKey(account));
+        preference.setGroupKey(group.header.getGroupKey());
+        mAccountPreferences.put(account, preference);
+        mSearchIndex.put(account, account.name, group.header.getTitle());
+        group.accounts.add(preference);
+        if (isAccountShown(group, preference)) {
+            mManageAccountsCategory.addPreference(preference);
+        }
+        return preference;
+    }
+
+    private void removeAccountPreference(AccountPreference preference) {
+        AccountGroup group = mGroups.get(preference.getAccount().type);
+        mSearchIndex.remove(preference.getAccount());
+        group.accounts.remove(preference);
+        mManageAccountsCategory.removePreference(preference);
+        if (group.accounts.isEmpty()) {
+            mManageAccountsCategory.removePreference(group.header);
+            mGroups.remove(preference.getAccount().type);
+        }
+    }
+
+    /**
+     * Decides whether the groups created since the last call start out expanded: as they
+     * were before the activity was recreated, or else if they are small.
+     */
+    private void expandNewGroups() {
+        for (AccountGroup group : mNewGroups) {
+            boolean expanded = mRestoredExpandedTypes != null
+                    ? mRestoredExpandedTypes.contains(group.header.getAccountType())
+                    : group.accounts.size() <= MAX_ACCOUNTS_EXPANDED;
+            setGroupExpanded(group, expanded);
+        }
+        if (!mNewGroups.isEmpty()) {
+            // types showing up later get the default
+            mRestoredExpandedTypes = null;
+            mNewGroups.clear();
+        }
+    }
+
+    private void setGroupExpanded(AccountGroup group, boolean expanded) {
+        if (group.header.isExpanded() == expanded) {
+            return;
+        }
+        group.header.setExpanded(expanded);
+        updateGroupVisibility(group);
+    }
+
+    private boolean isAccountShown(AccountGroup group, AccountPreference preference) {
+        return mSearchMatches != null
+                ? mSearchMatches.contains(preference.getAccount())
+                : group.header.isExpanded();
+    }
+
+    /**
+     * Adds the rows of a group that should be visible to the list and removes the others.
+     */
+    private void updateGroupVisibility(AccountGroup group) {
+        boolean anyShown = false;
+        for (int i = 0, n = group.accounts.size(); i < n; i++) {
+            AccountPreference preference = group.accounts.get(i);
+            if (isAccountShown(group, preference)) {
+                mManageAccountsCategory.addPreference(preference);
+                anyShown = true;
+            } else {
+                mManageAccountsCategory.removePreference(preference);
+            }
+        }
+        if (mSearchMatches == null || anyShown) {
+            mManageAccountsCategory.addPreference(group.header);
+        } else {
+            mManageAccountsCategory.removePreference(group.header);
+        }
+    }
+
+    @Override
+    protected boolean isAccountTypeShown(String accountType) {
+        return mGroups.containsKey(accountType);
+    }
+
     @Override
     protected void onAuthDescriptionsUpdated() {
         // Update account icons for all account preference items
-        for (int i = 0; i < mManageAccountsCategory.getPreferenceCount(); i++) {
-            AccountPreference pref = (AccountPreference) mManageAccountsCategory.getPreference(i);
-            pref.setProviderIcon(getDrawableForType(pref.getAccount().type));
-            pref.setSummary(getLabelForType(pref.getAccount().type));
+        // and labels, which the search index files the accounts under
+        for (AccountGroup group : mGroups.values()) {
+            final String accountType = group.header.getAccountType();
+            Drawable icon = getDrawableForType(accountType);
+            CharSequence label = getLabelForType(accountType);
+            group.header.setProviderIcon(icon);
+            group.header.setTitle(label != null ? label : accountType);
+            for (AccountPreference pref : group.accounts) {
+                pref.setProviderIcon(icon);
+                mSearchIndex.put(pref.getAccount(), pref.getAccount().name,
+                        group.header.getTitle());
+            }
+        }
+        if (mSearchMatches != null) {
+            applySearch();
         }
     }
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.PeriodicSync;
+import android.content.SyncStatusInfo;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Moves the existing periodic syncs of an account's authorities onto one shared period
+ * and restarts them together, so the sync manager wakes the device up once per period
+ * for the whole account instead of once per adapter schedule.
+ */
+class PeriodicSyncAligner {
+    private static final String TAG = "AccountSettings";
+
+    /**
+     * Describes the periodic syncs currently registered for an account.
+     */
+    static class Schedule {
+        /** Number of authorities that have at least one periodic sync. */
+        int scheduledCount;
+        /** Number of distinct periods, i.e. independent wakeup schedules. */
+        int wakeupCount;
+        /** The shared period in seconds, or 0 if the periodic syncs are not aligned. */
+        long alignedPeriod;
+        /** Rough estimate of the next batched wakeup, or 0 if unknown. */
+        long nextWakeupTime;
+    }
+
+    private PeriodicSyncAligner() {
+    }
+
+    /**
+     * Reads the periodic syncs of the given authorities and summarizes them.
+     */
+    static Schedule getSchedule(Account account, List<String> authorities) {
+        Schedule schedule = new Schedule();
+        HashSet<Long> periods = new HashSet<Long>();
+        long oldestSync = 0;
+        for (String authority : authorities) {
+            long start = IpcAuditor.begin();
+            List<PeriodicSync> syncs = ContentResolver.getPeriodicSyncs(account, authority);
+            IpcAuditor.end("ContentResolver.getPeriodicSyncs", start);
+            if (syncs == null || syncs.isEmpty()) {
+                continue;
+            }
+            schedule.scheduledCount++;
+            for (PeriodicSync sync : syncs) {
+                periods.add(sync.period);
+            }
+            start = IpcAuditor.begin();
+            SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
+            IpcAuditor.end("ContentResolver.getSyncStatus", start);
+            long lastSync = status == null ? 0 : status.lastSuccessTime;
+            if (oldestSync == 0 || (lastSync != 0 && lastSync < oldestSync)) {
+                oldestSync = lastSync;
+            }
+        }
+        schedule.wakeupCount = periods.size();
+        if (periods.size() == 1) {
+            schedule.alignedPeriod = periods.iterator().next();
+            if (oldestSync != 0) {
+                schedule.nextWakeupTime = oldestSync + schedule.alignedPeriod * 1000;
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Moves every periodic sync of the given authorities onto a period of {@code period}
+     * seconds. Each sync keeps its own extras, so adapters that register several periodic
+     * syncs still get all of them. Authorities without a periodic sync are left alone.
+     * <p>
+     * Updating a periodic sync in place keeps the time it last ran, so syncs that share a
+     * period could still run at different points of it. Removing and adding them again
+     * starts them all from the same point.
+     */
+    static void align(Account account, List<String> authorities, long period) {
+        for (String authority : authorities) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "aligning periodic sync of " + authority + " to " + period + "s");
+            }
+            long start = IpcAuditor.begin();
+            List<PeriodicSync> syncs = ContentResolver.getPeriodicSyncs(account, authority);
+            IpcAuditor.end("ContentResolver.getPeriodicSyncs", start);
+            if (syncs == null) {
+                continue;
+            }
+            for (PeriodicSync sync : syncs) {
+                start = IpcAuditor.begin();
+                ContentResolver.removePeriodicSync(account, authority, sync.extras);
+                IpcAuditor.end("ContentResolver.removePeriodicSync", start);
+                start = IpcAuditor.begin();
+                ContentResolver.addPeriodicSync(account, authority, sync.extras, period);
+                IpcAuditor.end("ContentResolver.addPeriodicSync", start);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds items by the prefixes of the words of their texts. Every word is a key of a sorted
+ * map, so a lookup is one range of the map instead of a scan of all items. Items are added
+ * and removed one at a time as the screens learn about them.
+ *
+ * Words are the runs of letters and digits, so "jane.doe@example.com" is filed under
+ * "jane", "doe", "example" and "com". A query matches an item if each of its words is the
+ * prefix of one of the item's words, ignoring case.
+ *
+ * Not thread safe, the screens use it from the main thread.
+ */
+class PrefixIndex<T> {
+    private final TreeMap<String, ArrayList<T>> mWords = new TreeMap<String, ArrayList<T>>();
+    /** The words each item is filed under, to remove it again. */
+    private final HashMap<T, HashSet<String>> mItemWords = new HashMap<T, HashSet<String>>();
+
+    int size() {
+        return mItemWords.size();
+    }
+
+    /**
+     * Files an item under the words of the given texts, replacing what it was filed
+     * under before. Null texts are skipped.
+     */
+    void put(T item, CharSequence... texts) {
+        remove(item);
+        HashSet<String> words = new HashSet<String>();
+        for (CharSequence text : texts) {
+            if (text == null) {
+                continue;
+            }
+            splitWords(normalize(text), words);
+        }
+        for (String word : words) {
+            ArrayList<T> items = mWords.get(word);
+            if (items == null) {
+                items = new ArrayList<T>(1);
+                mWords.put(word, items);
+            }
+            items.add(item);
+        }
+        mItemWords.put(item, words);
+    }
+
+    void remove(T item) {
+        HashSet<String> words = mItemWords.remove(item);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            ArrayList<T> items = mWords.get(word);
+            items.remove(item);
+            if (items.isEmpty()) {
+                mWords.remove(word);
+            }
+        }
+    }
+
+    void clear() {
+        mWords.clear();
+        mItemWords.clear();
+    }
+
+    /**
+     * Returns the items matching a query. An empty query matches every item.
+     */
+    HashSet<T> query(CharSequence query) {
+        ArrayList<String> prefixes = new ArrayList<String>();
+        splitWords(normalize(query), prefixes);
+        if (prefixes.isEmpty()) {
+            return new HashSet<T>(mItemWords.keySet());
+        }
+        HashSet<T> result = null;
+        for (String prefix : prefixes) {
+            HashSet<T> matches = new HashSet<T>();
+            // every key starting with the prefix sorts below the prefix followed by the
+            // largest char
+            for (Map.Entry<String, ArrayList<T>> entry
+                    : mWords.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+                if (result == null) {
+                    matches.addAll(entry.getValue());
+                } else {
+                    for (T item : entry.getValue()) {
+                        if (result.contains(item)) {
+                            matches.add(item);
+                        }
+                    }
+                }
+            }
+            result = matches;
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static String normalize(CharSequence text) {
+        return text.toString().toLowerCase(Locale.getDefault());
+    }
+
+    /**
+     * Adds the runs of letters and digits of a normalized text to a collection.
+     */
+    private static void splitWords(String text, Collection<String> words) {
+        int start = -1;
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            final boolean inWord = i < n && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+}
@@ -30,7 +30,6 @@ import android.widget.ImageView;
  */
 public class ProviderPreference extends Preference {
     private Drawable mProviderIcon;
-    private ImageView mProviderIconView;
     private CharSequence mProviderName;
     private String mAccountType;
 
@@ -48,10 +47,23 @@ public class ProviderPreference extends Preference {
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
-        mProviderIconView = (ImageView) view.findViewById(R.id.providerIcon);
-        mProviderIconView.setImageDrawable(mProviderIcon);
-        setTitle(mProviderName);
-        //setSummary(mProviderName);
+        // the title is bound by Preference, only the icon is ours
+        ImageView providerIconView = (ImageView) view.getTag(R.id.preference_view_holder);
+        if (providerIconView == null) {
+            providerIconView = (ImageView) view.findViewById(R.id.providerIcon);
+            view.setTag(R.id.preference_view_holder, providerIconView);
+        }
+        providerIconView.setImageDrawable(mProviderIcon);
+    }
+
+    /**
+     * Rebinds only this row instead of invalidating the whole list.
+     */
+    @Override
+    protected void notifyChanged() {
+        if (!AccountPreferenceBase.requestRebind(this)) {
+            super.notifyChanged();
+        }
     }
 
     public String getAccountType() {
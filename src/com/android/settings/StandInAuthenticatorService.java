@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.AbstractAccountAuthenticator;
+import android.accounts.Account;
+import android.accounts.AccountAuthenticatorResponse;
+import android.accounts.AccountManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+/**
+ * An authenticator that adds accounts without a server or a screen, for trying out the
+ * provisioning batch of AddAccountSettings. It is disabled in the manifest:
+ * <pre>
+ *   PKG=com.android.providers.subscribedfeeds
+ *   adb shell pm enable $PKG/com.android.settings.StandInAuthenticatorService
+ * </pre>
+ * then lines like these in the provisioning manifest add its accounts:
+ * <pre>
+ *   com.android.settings.standin  name=alice  delayMillis=2000
+ *   com.android.settings.standin  name=bob  result=fail
+ *   com.android.settings.standin  name=carol  result=needsUser
+ * </pre>
+ * delayMillis makes the addition take that long, so the concurrency of the batch can be
+ * seen. result=fail reports an error and result=needsUser asks for a screen, the two ways
+ * a real authenticator fails without an activity.
+ */
+public class StandInAuthenticatorService extends Service {
+    static final String ACCOUNT_TYPE = "com.android.settings.standin";
+
+    private static final String NAME_OPTION = "name";
+    private static final String DELAY_OPTION = "delayMillis";
+    private static final String RESULT_OPTION = "result";
+    private static final String RESULT_FAIL = "fail";
+    private static final String RESULT_NEEDS_USER = "needsUser";
+
+    private Authenticator mAuthenticator;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mAuthenticator = new Authenticator(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mAuthenticator.getIBinder();
+    }
+
+    private static class Authenticator extends AbstractAccountAuthenticator {
+        private final Context mContext;
+
+        Authenticator(Context context) {
+            super(context);
+            mContext = context;
+        }
+
+        @Override
+        public Bundle addAccount(AccountAuthenticatorResponse response, String accountType,
+                String authTokenType, String[] requiredFeatures, Bundle options) {
+            // called on a binder thread, so sleeping only holds up this one addition
+            try {
+                final long delay = Long.parseLong(options.getString(DELAY_OPTION));
+                SystemClock.sleep(delay);
+            } catch (NumberFormatException e) {
+                // no delay
+            }
+            final String name = options.getString(NAME_OPTION);
+            final String result = options.getString(RESULT_OPTION);
+            Bundle bundle = new Bundle();
+            if (RESULT_NEEDS_USER.equals(result)) {
+                bundle.putParcelable(AccountManager.KEY_INTENT, new Intent());
+            } else if (RESULT_FAIL.equals(result) || name == null) {
+                bundle.putInt(AccountManager.KEY_ERROR_CODE,
+                        AccountManager.ERROR_CODE_BAD_ARGUMENTS);
+                bundle.putString(AccountManager.KEY_ERROR_MESSAGE,
+                        name == null ? "no name option" : "failed as asked");
+            } else if (!AccountManager.get(mContext).addAccountExplicitly(
+                    new Account(name, ACCOUNT_TYPE), null, null)) {
+                bundle.putInt(AccountManager.KEY_ERROR_CODE,
+                        AccountManager.ERROR_CODE_BAD_ARGUMENTS);
+                bundle.putString(AccountManager.KEY_ERROR_MESSAGE, "account exists");
+            } else {
+                bundle.putString(AccountManager.KEY_ACCOUNT_NAME, name);
+                bundle.putString(AccountManager.KEY_ACCOUNT_TYPE, ACCOUNT_TYPE);
+            }
+            return bundle;
+        }
+
+        @Override
+        public Bundle editProperties(AccountAuthenticatorResponse response,
+                String accountType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bundle confirmCredentials(AccountAuthenticatorResponse response,
+                Account account, Bundle options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bundle getAuthToken(AccountAuthenticatorResponse response, Account account,
+                String authTokenType, Bundle options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getAuthTokenLabel(String authTokenType) {
+            return null;
+        }
+
+        @Override
+        public Bundle updateCredentials(AccountAuthenticatorResponse response,
+                Account account, String authTokenType, Bundle options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bundle hasFeatures(AccountAuthenticatorResponse response, Account account,
+                String[] features) {
+            Bundle result = new Bundle();
+            result.putBoolean(AccountManager.KEY_BOOLEAN_RESULT, false);
+            return result;
+        }
+    }
+}
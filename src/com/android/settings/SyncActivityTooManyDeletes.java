@@ -20,8 +20,9 @@ import com.android.providers.subscribedfeeds.R;
 
 import android.accounts.Account;
 import android.app.Activity;
-import android.content.ContentResolver;
+import android.content.Intent;
 import android.os.Bundle;
+import android.util.SparseBooleanArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -31,34 +32,43 @@ import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+
 /**
  * Presents multiple options for handling the case where a sync was aborted because there
  * were too many pending deletes. One option is to force the delete, another is to rollback
  * the deletes, the third is to do nothing.
+ *
+ * Every launch adds its conflict to the TooManyDeletesQueue. When more than one is
+ * pending they are listed together, and the chosen option applies to the checked ones.
+ * Only conflicts that arrived while the activity was open start out checked. Leaving with
+ * Back does nothing about the conflicts shown.
  */
 public class SyncActivityTooManyDeletes extends Activity
         implements AdapterView.OnItemClickListener {
+    private static final String CHECKED_KEYS_KEY = "checkedConflicts";
 
-    private long mNumDeletes;
-    private Account mAccount;
-    private String mAuthority;
-    private String mProvider;
+    private TextView mDescription;
+    private ListView mConflictList;
+    private ArrayList<TooManyDeletesQueue.Conflict> mConflicts;
+    /** Keys of the conflicts checked in the list. */
+    private HashSet<String> mCheckedKeys = new HashSet<String>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        Bundle extras = getIntent().getExtras();
-        if (extras == null) {
-            finish();
-            return;
+        // only the launch itself brings a conflict, not a recreation
+        if (savedInstanceState == null) {
+            addConflict(getIntent());
+        } else {
+            ArrayList<String> checked = savedInstanceState.getStringArrayList(CHECKED_KEYS_KEY);
+            if (checked != null) {
+                mCheckedKeys.addAll(checked);
+            }
         }
 
-        mNumDeletes = extras.getLong("numDeletes");
-        mAccount = (Account) extras.getParcelable("account");
-        mAuthority = extras.getString("authority");
-        mProvider = extras.getString("provider");
-
         // the order of these must match up with the constants for position used in onItemClick
         CharSequence[] options = new CharSequence[]{
                 getResources().getText(R.string.sync_really_delete),
@@ -76,17 +86,17 @@ public class SyncActivityTooManyDeletes extends Activity
         listView.setItemsCanFocus(true);
         listView.setOnItemClickListener(this);
 
-        TextView textView = new TextView(this);
-        CharSequence tooManyDeletesDescFormat =
-                getResources().getText(R.string.sync_too_many_deletes_desc);
-        textView.setText(String.format(tooManyDeletesDescFormat.toString(),
-                mNumDeletes, mProvider, mAccount.name));
+        mDescription = new TextView(this);
+
+        mConflictList = new ListView(this);
+        mConflictList.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
 
         final LinearLayout ll = new LinearLayout(this);
         ll.setOrientation(LinearLayout.VERTICAL);
         final LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
                 ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT, 0);
-        ll.addView(textView, lp);
+        ll.addView(mDescription, lp);
+        ll.addView(mConflictList, lp);
         ll.addView(listView, lp);
 
         // TODO: consider displaying the icon of the account type
@@ -105,30 +115,127 @@ public class SyncActivityTooManyDeletes extends Activity
 //        }
 
         setContentView(ll);
+        if (!showConflicts()) {
+            finish();
+        }
     }
 
-    public void onItemClick(AdapterView parent, View view, int position, long id) {
-        // the contants for position correspond to the items options array in onCreate()
-        if (position == 0) startSyncReallyDelete();
-        else if (position == 1) startSyncUndoDeletes();
-        finish();
+    /**
+     * Called instead of onCreate() for launches while the activity is on top, since it is
+     * singleTop: the new conflict joins the list.
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        readCheckedKeys();
+        addConflict(intent);
+        showConflicts();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        readCheckedKeys();
+        outState.putStringArrayList(CHECKED_KEYS_KEY, new ArrayList<String>(mCheckedKeys));
+    }
+
+    @Override
+    public void onBackPressed() {
+        // the user saw the conflicts and chose to leave them alone
+        TooManyDeletesQueue.resolve(this, mConflicts, TooManyDeletesQueue.ACTION_DO_NOTHING);
+        super.onBackPressed();
     }
 
-    private void startSyncReallyDelete() {
-        Bundle extras = new Bundle();
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_OVERRIDE_TOO_MANY_DELETIONS, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, true);
-        ContentResolver.requestSync(mAccount, mAuthority, extras);
+    /**
+     * Adds the conflict of a launch to the queue, checked.
+     */
+    private void addConflict(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (extras == null) {
+            return;
+        }
+        Account account = (Account) extras.getParcelable("account");
+        String authority = extras.getString("authority");
+        if (account != null && authority != null) {
+            TooManyDeletesQueue.Conflict conflict = new TooManyDeletesQueue.Conflict(account,
+                    authority, extras.getString("provider"), extras.getLong("numDeletes"),
+                    System.currentTimeMillis());
+            TooManyDeletesQueue.add(this, conflict);
+            mCheckedKeys.add(conflict.key());
+        }
+    }
+
+    /**
+     * Remembers which of the listed conflicts are checked, before the list is rebuilt.
+     */
+    private void readCheckedKeys() {
+        if (mConflicts == null || mConflicts.size() < 2) {
+            return;
+        }
+        SparseBooleanArray checked = mConflictList.getCheckedItemPositions();
+        for (int i = 0, n = mConflicts.size(); i < n; i++) {
+            if (checked.get(i)) {
+                mCheckedKeys.add(mConflicts.get(i).key());
+            } else {
+                mCheckedKeys.remove(mConflicts.get(i).key());
+            }
+        }
     }
 
-    private void startSyncUndoDeletes() {
-        Bundle extras = new Bundle();
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_DISCARD_LOCAL_DELETIONS, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        extras.putBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, true);
-        ContentResolver.requestSync(mAccount, mAuthority, extras);
+    /**
+     * Shows the pending conflicts. Those in mCheckedKeys are checked.
+     * @return false if there are none
+     */
+    private boolean showConflicts() {
+        mConflicts = TooManyDeletesQueue.getConflicts(this);
+        if (mConflicts.isEmpty()) {
+            return false;
+        }
+        if (mConflicts.size() == 1) {
+            TooManyDeletesQueue.Conflict conflict = mConflicts.get(0);
+            CharSequence tooManyDeletesDescFormat =
+                    getResources().getText(R.string.sync_too_many_deletes_desc);
+            mDescription.setText(String.format(tooManyDeletesDescFormat.toString(),
+                    conflict.numDeletes, conflict.provider, conflict.account.name));
+            mConflictList.setVisibility(View.GONE);
+        } else {
+            mDescription.setText(getString(R.string.sync_too_many_deletes_multiple_desc,
+                    mConflicts.size()));
+            String[] items = new String[mConflicts.size()];
+            for (int i = 0; i < items.length; i++) {
+                TooManyDeletesQueue.Conflict conflict = mConflicts.get(i);
+                items[i] = getString(R.string.sync_too_many_deletes_item, conflict.numDeletes,
+                        conflict.provider, conflict.account.name);
+            }
+            mConflictList.setAdapter(new ArrayAdapter<String>(this,
+                    android.R.layout.simple_list_item_multiple_choice, items));
+            for (int i = 0; i < items.length; i++) {
+                mConflictList.setItemChecked(i, mCheckedKeys.contains(mConflicts.get(i).key()));
+            }
+            mConflictList.setVisibility(View.VISIBLE);
+        }
+        return true;
+    }
+
+    public void onItemClick(AdapterView parent, View view, int position, long id) {
+        // the contants for position correspond to the items options array in onCreate(),
+        // and to the TooManyDeletesQueue actions
+        ArrayList<TooManyDeletesQueue.Conflict> chosen =
+                new ArrayList<TooManyDeletesQueue.Conflict>();
+        if (mConflicts.size() == 1) {
+            chosen.add(mConflicts.get(0));
+        } else {
+            SparseBooleanArray checked = mConflictList.getCheckedItemPositions();
+            for (int i = 0, n = mConflicts.size(); i < n; i++) {
+                if (checked.get(i)) {
+                    chosen.add(mConflicts.get(i));
+                }
+            }
+        }
+        TooManyDeletesQueue.resolve(this, chosen, position);
+        readCheckedKeys();
+        if (!showConflicts()) {
+            finish();
+        }
     }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sync flags of every authority of one account, saved so they can be applied to other
+ * accounts of the same type. There is one profile per account type, in a private file of
+ * the app; setup tools can push the same file to many devices.
+ *
+ * File format, UTF-8 text:
+ * <pre>
+ *   # comment
+ *   type ACCOUNT_TYPE
+ *   AUTHORITY SYNC_AUTOMATICALLY(0|1) SYNCABLE(-1|0|1)
+ *   ...
+ * </pre>
+ * A syncable value of -1 leaves the authority's syncable state alone.
+ */
+class SyncProfile {
+    private static final String TAG = "AccountSettings";
+    private static final String DIR_NAME = "sync_profiles";
+    private static final String TYPE_LINE = "type ";
+
+    private static class Entry {
+        final String authority;
+        final boolean syncAutomatically;
+        /** -1 to leave the syncable state alone, otherwise 0 or 1. */
+        final int syncable;
+
+        Entry(String authority, boolean syncAutomatically, int syncable) {
+            this.authority = authority;
+            this.syncAutomatically = syncAutomatically;
+            this.syncable = syncable;
+        }
+    }
+
+    final String accountType;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    SyncProfile(String accountType) {
+        this.accountType = accountType;
+    }
+
+    void add(String authority, boolean syncAutomatically, int syncable) {
+        mEntries.add(new Entry(authority, syncAutomatically,
+                syncable < 0 ? -1 : syncable > 0 ? 1 : 0));
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Records the flags of the given authorities of an account. An authority that isn't
+     * initialized yet is recorded as -1, so applying the profile doesn't turn it off.
+     */
+    static SyncProfile capture(SyncStateRepository syncState, Account account,
+            List<String> authorities) {
+        SyncProfile profile = new SyncProfile(account.type);
+        for (String authority : authorities) {
+            SyncStateRepository.AuthorityState state =
+                    syncState.getAuthoritySettings(account, authority);
+            profile.add(authority, state.syncAutomatically, state.syncable);
+        }
+        return profile;
+    }
+
+    /**
+     * Queues the profile's flags for an account. Accounts of another type are skipped.
+     * @return true if the account is of the profile's type
+     */
+    boolean addTo(SyncSettingsBatch batch, Account account) {
+        if (!account.type.equals(accountType)) {
+            return false;
+        }
+        for (int i = 0, n = mEntries.size(); i < n; i++) {
+            final Entry entry = mEntries.get(i);
+            if (entry.syncable >= 0) {
+                batch.setIsSyncable(account, entry.authority, entry.syncable);
+            }
+            batch.setSyncAutomatically(account, entry.authority, entry.syncAutomatically);
+        }
+        return true;
+    }
+
+    private static File getFile(Context context, String accountType) {
+        return new File(new File(context.getFilesDir(), DIR_NAME), Uri.encode(accountType));
+    }
+
+    static boolean exists(Context context, String accountType) {
+        return getFile(context, accountType).exists();
+    }
+
+    /**
+     * Reads the profile of an account type.
+     * @return the profile, or null if there is none or it can't be read
+     */
+    static SyncProfile load(Context context, String accountType) {
+        final File file = getFile(context, accountType);
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            SyncProfile profile = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                if (profile == null) {
+                    if (!line.startsWith(TYPE_LINE)
+                            || !line.substring(TYPE_LINE.length()).trim().equals(accountType)) {
+                        Log.w(TAG, "Sync profile " + file + " is not for " + accountType);
+                        return null;
+                    }
+                    profile = new SyncProfile(accountType);
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3) {
+                    Log.w(TAG, "Bad line in sync profile " + file + ": " + line);
+                    return null;
+                }
+                profile.add(fields[0], "1".equals(fields[1]), Integer.parseInt(fields[2]));
+            }
+            return profile;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read sync profile " + file, e);
+            return null;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad syncable value in sync profile " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the profile, replacing the one of the account type once it is complete.
+     * @return true if it was written
+     */
+    boolean save(Context context) {
+        final File file = getFile(context, accountType);
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + dir);
+            return false;
+        }
+        final File temp = new File(dir, file.getName() + ".tmp");
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            out.write(TYPE_LINE + accountType + "\n");
+            for (int i = 0, n = mEntries.size(); i < n; i++) {
+                final Entry entry = mEntries.get(i);
+                out.write(entry.authority + " " + (entry.syncAutomatically ? 1 : 0) + " "
+                        + entry.syncable + "\n");
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Couldn't replace sync profile " + file);
+                temp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write sync profile " + file, e);
+            temp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                temp.delete();
+            }
+        }
+    }
+}
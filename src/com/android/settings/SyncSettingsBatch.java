@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects sync setting changes for many (account, authority) pairs and applies them in
+ * one pass. The syncs that have to be requested or cancelled as a result are collected
+ * first and dispatched once per pair at the end.
+ */
+class SyncSettingsBatch {
+    private static final String TAG = "AccountSettings";
+
+    private static class Change {
+        final Account account;
+        final String authority;
+        final boolean syncAutomatically;
+
+        Change(Account account, String authority, boolean syncAutomatically) {
+            this.account = account;
+            this.authority = authority;
+            this.syncAutomatically = syncAutomatically;
+        }
+    }
+
+    private static class SyncableChange {
+        final Account account;
+        final String authority;
+        final int syncable;
+
+        SyncableChange(Account account, String authority, int syncable) {
+            this.account = account;
+            this.authority = authority;
+            this.syncable = syncable;
+        }
+    }
+
+    private final Context mContext;
+    private final SyncStateRepository mSyncState;
+    private final ArrayList<Change> mChanges = new ArrayList<Change>();
+    private final ArrayList<SyncableChange> mSyncableChanges = new ArrayList<SyncableChange>();
+
+    SyncSettingsBatch(Context context) {
+        mContext = context;
+        mSyncState = SyncStateRepository.getInstance(context);
+    }
+
+    /**
+     * Queues a change of the auto-sync flag. Nothing is written until {@link #apply()}.
+     */
+    void setSyncAutomatically(Account account, String authority, boolean sync) {
+        mChanges.add(new Change(account, authority, sync));
+    }
+
+    /**
+     * Queues a change of whether an authority syncs for an account at all. These are
+     * written before the auto-sync changes.
+     */
+    void setIsSyncable(Account account, String authority, int syncable) {
+        mSyncableChanges.add(new SyncableChange(account, authority, syncable));
+    }
+
+    boolean isEmpty() {
+        return mChanges.isEmpty() && mSyncableChanges.isEmpty();
+    }
+
+    /**
+     * Writes all queued changes, then requests or cancels the affected syncs.
+     * @return the number of settings that actually changed
+     */
+    int apply() {
+        final boolean masterSyncAutomatically = mSyncState.getMasterSyncAutomatically();
+        // keyed by account and authority so each sync is requested or cancelled only once
+        LinkedHashMap<String, Change> dispatch = new LinkedHashMap<String, Change>();
+        int changed = 0;
+        for (SyncableChange change : mSyncableChanges) {
+            final int oldSyncable = mSyncState.getAuthoritySettings(change.account,
+                    change.authority).syncable;
+            // an unknown (-1) state is always written
+            if (oldSyncable >= 0 && (oldSyncable > 0) == (change.syncable > 0)) {
+                continue;
+            }
+            changed++;
+            mSyncState.setIsSyncable(change.account, change.authority, change.syncable);
+        }
+        for (Change change : mChanges) {
+            boolean oldSyncState = mSyncState.getAuthorityState(change.account,
+                    change.authority).syncAutomatically;
+            if (oldSyncState == change.syncAutomatically) {
+                continue;
+            }
+            changed++;
+            // if we're enabling sync, this will request a sync as well
+            mSyncState.setSyncAutomatically(change.account, change.authority,
+                    change.syncAutomatically);
+            // the request above gets dropped when the master sync switch is off
+            if (!masterSyncAutomatically || !change.syncAutomatically) {
+                dispatch.put(change.account.type + "/" + change.account.name + "/"
+                        + change.authority, change);
+            } else if (UnmeteredSyncQueue.shouldDefer(mContext, change.account)) {
+                deferRequestedSync(mContext, change.account, change.authority);
+            }
+        }
+        for (Map.Entry<String, Change> entry : dispatch.entrySet()) {
+            Change change = entry.getValue();
+            requestOrCancelSync(mContext, change.account, change.authority,
+                    change.syncAutomatically);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "applied " + changed + " of "
+                    + (mChanges.size() + mSyncableChanges.size()) + " sync changes, "
+                    + dispatch.size() + " syncs dispatched");
+        }
+        mChanges.clear();
+        mSyncableChanges.clear();
+        return changed;
+    }
+
+    /**
+     * Takes back the sync that setSyncAutomatically() requests when the master sync switch
+     * is on, and queues it for the next unmetered network instead.
+     */
+    static void deferRequestedSync(Context context, Account account, String authority) {
+        final long start = IpcAuditor.begin();
+        ContentResolver.cancelSync(account, authority);
+        IpcAuditor.end("ContentResolver.cancelSync", start);
+        UnmeteredSyncQueue.enqueue(context, account, authority);
+    }
+
+    /**
+     * Requests a manual sync, or cancels a running one. Requests for accounts that only
+     * sync on unmetered networks are queued while the active network is metered.
+     */
+    static void requestOrCancelSync(Context context, Account account, String authority,
+            boolean flag) {
+        if (flag && UnmeteredSyncQueue.shouldDefer(context, account)) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "deferring sync of " + authority + " until unmetered");
+            }
+            UnmeteredSyncQueue.enqueue(context, account, authority);
+        } else if (flag) {
+            Bundle extras = new Bundle();
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            final long start = IpcAuditor.begin();
+            ContentResolver.requestSync(account, authority, extras);
+            IpcAuditor.end("ContentResolver.requestSync", start);
+        } else {
+            UnmeteredSyncQueue.remove(context, account, authority);
+            final long start = IpcAuditor.begin();
+            ContentResolver.cancelSync(account, authority);
+            IpcAuditor.end("ContentResolver.cancelSync", start);
+        }
+    }
+}
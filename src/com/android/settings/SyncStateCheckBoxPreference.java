@@ -21,6 +21,7 @@ import com.android.providers.subscribedfeeds.R;
 import android.content.Context;
 import android.graphics.drawable.AnimationDrawable;
 import android.preference.CheckBoxPreference;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.ImageView;
@@ -32,8 +33,26 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
     private boolean mIsActive = false;
     private boolean mIsPending = false;
     private boolean mFailed = false;
+    private boolean mIsDeferred = false;
     private Account mAccount;
     private String mAuthority;
+    private CharSequence mSummary;
+
+    /**
+     * Child views of a row, kept on the row so rebinding it does not look them up again.
+     * The owner is the preference the row was last bound to; list rows are recycled, so a
+     * preference only updates a holder it still owns.
+     */
+    private static class ViewHolder {
+        ImageView syncActive;
+        View syncPending;
+        View syncFailed;
+        View checkBox;
+        TextView summary;
+        SyncStateCheckBoxPreference owner;
+    }
+
+    private ViewHolder mViewHolder;
 
     /**
      * A mode for this preference where clicking does a one-time sync instead of
@@ -46,6 +65,7 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
         setWidgetLayoutResource(R.layout.preference_widget_sync_toggle);
         mAccount = null;
         mAuthority = null;
+        mSummary = super.getSummary();
     }
 
     public SyncStateCheckBoxPreference(Context context, Account account, String authority) {
@@ -58,10 +78,28 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
     @Override
     public void onBindView(View view) {
         super.onBindView(view);
-        ImageView syncActiveView = (ImageView) view.findViewById(R.id.sync_active);
-        View syncPendingView = view.findViewById(R.id.sync_pending);
-        View syncFailedView = view.findViewById(R.id.sync_failed);
+        ViewHolder holder = (ViewHolder) view.getTag(R.id.preference_view_holder);
+        if (holder == null) {
+            holder = new ViewHolder();
+            holder.syncActive = (ImageView) view.findViewById(R.id.sync_active);
+            holder.syncPending = view.findViewById(R.id.sync_pending);
+            holder.syncFailed = view.findViewById(R.id.sync_failed);
+            holder.checkBox = view.findViewById(android.R.id.checkbox);
+            holder.summary = (TextView) view.findViewById(android.R.id.summary);
+            view.setTag(R.id.preference_view_holder, holder);
+        }
+        holder.owner = this;
+        mViewHolder = holder;
+        bindSyncState(holder);
+        bindSummary(holder);
+    }
+
+    private ViewHolder getBoundViewHolder() {
+        return mViewHolder != null && mViewHolder.owner == this ? mViewHolder : null;
+    }
 
+    private void bindSyncState(ViewHolder holder) {
+        final ImageView syncActiveView = holder.syncActive;
         syncActiveView.setVisibility(mIsActive ? View.VISIBLE : View.GONE);
         final AnimationDrawable anim = (AnimationDrawable) syncActiveView.getDrawable();
         boolean showError;
@@ -76,7 +114,7 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
             showError = false;
         } else {
             anim.stop();
-            if (mIsPending) {
+            if (mIsPending || mIsDeferred) {
                 showPending = true;
                 showError = false;
             } else {
@@ -85,22 +123,68 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
             }
         }
 
-        syncFailedView.setVisibility(showError ? View.VISIBLE : View.GONE);
-        syncPendingView.setVisibility((showPending && !mIsActive) ? View.VISIBLE : View.GONE);
-        
-        View checkBox = view.findViewById(android.R.id.checkbox);
-        if (mOneTimeSyncMode) {
-            checkBox.setVisibility(View.GONE);
-            
+        holder.syncFailed.setVisibility(showError ? View.VISIBLE : View.GONE);
+        holder.syncPending.setVisibility((showPending && !mIsActive) ? View.VISIBLE : View.GONE);
+        holder.checkBox.setVisibility(mOneTimeSyncMode ? View.GONE : View.VISIBLE);
+    }
+
+    private void bindSummary(ViewHolder holder) {
+        final TextView summary = holder.summary;
+        if (TextUtils.isEmpty(mSummary)) {
+            summary.setVisibility(View.GONE);
+        } else if (mOneTimeSyncMode) {
             /*
              * Override the summary. Fill in the %1$s with the existing summary
              * (what ends up happening is the old summary is shown on the next
              * line).
              */
-            TextView summary = (TextView) view.findViewById(android.R.id.summary);
-            summary.setText(getContext().getString(R.string.sync_one_time_sync, getSummary()));
+            summary.setText(getContext().getString(R.string.sync_one_time_sync, mSummary));
+            summary.setVisibility(View.VISIBLE);
         } else {
-            checkBox.setVisibility(View.VISIBLE);
+            summary.setText(mSummary);
+            summary.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Updates the bound row after a change of the sync state. Only this row's views are
+     * touched; if the row is not on screen it is brought up to date when next bound.
+     */
+    private void syncStateChanged() {
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            bindSyncState(holder);
+        }
+    }
+
+    /**
+     * Rebinds only this row instead of invalidating the whole list.
+     */
+    @Override
+    protected void notifyChanged() {
+        if (!AccountPreferenceBase.requestRebind(this)) {
+            super.notifyChanged();
+        }
+    }
+
+    @Override
+    public CharSequence getSummary() {
+        return mSummary;
+    }
+
+    /**
+     * Sets the summary without invalidating the whole list like Preference.setSummary()
+     * would; the sync time shown here changes after every sync.
+     */
+    @Override
+    public void setSummary(CharSequence summary) {
+        if (TextUtils.equals(summary, mSummary)) {
+            return;
+        }
+        mSummary = summary;
+        ViewHolder holder = getBoundViewHolder();
+        if (holder != null) {
+            bindSummary(holder);
         }
     }
 
@@ -109,8 +193,10 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param isActive whether or not the sync is active
      */
     public void setActive(boolean isActive) {
-        mIsActive = isActive;
-        notifyChanged();
+        if (mIsActive != isActive) {
+            mIsActive = isActive;
+            syncStateChanged();
+        }
     }
 
     /**
@@ -118,8 +204,22 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param isPending whether or not the sync is pending
      */
     public void setPending(boolean isPending) {
-        mIsPending = isPending;
-        notifyChanged();
+        if (mIsPending != isPending) {
+            mIsPending = isPending;
+            syncStateChanged();
+        }
+    }
+
+    /**
+     * Set whether a sync request is held back until an unmetered network is available.
+     * A deferred sync is shown the same way as a pending one.
+     * @param isDeferred whether or not the sync is deferred
+     */
+    public void setDeferred(boolean isDeferred) {
+        if (mIsDeferred != isDeferred) {
+            mIsDeferred = isDeferred;
+            syncStateChanged();
+        }
     }
 
     /**
@@ -127,16 +227,24 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param failed whether or not the sync failed
      */
     public void setFailed(boolean failed) {
-        mFailed = failed;
-        notifyChanged();
+        if (mFailed != failed) {
+            mFailed = failed;
+            syncStateChanged();
+        }
     }
 
     /**
      * Sets whether the preference is in one-time sync mode.
      */
     public void setOneTimeSyncMode(boolean oneTimeSyncMode) {
-        mOneTimeSyncMode = oneTimeSyncMode;
-        notifyChanged();
+        if (mOneTimeSyncMode != oneTimeSyncMode) {
+            mOneTimeSyncMode = oneTimeSyncMode;
+            ViewHolder holder = getBoundViewHolder();
+            if (holder != null) {
+                bindSyncState(holder);
+                bindSummary(holder);
+            }
+        }
     }
     
     /**
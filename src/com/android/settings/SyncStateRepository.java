@@ -0,0 +1,725 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SyncAdapterType;
+import android.content.SyncStatusInfo;
+import android.content.SyncStatusObserver;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide cache of the account and sync state shown by the settings screens.
+ *
+ * The repository holds a single registration with the sync manager and the account
+ * manager no matter how many screens are alive. Every event clears the cached state once
+ * and is then passed on to all listeners; the state is reloaded lazily by whichever
+ * screen asks for it first, so screens on the back stack share the work.
+ *
+ * The screens run in their own process, so every read here is a binder call into
+ * system_server. Reads are cached per event and writes are grouped by SyncSettingsBatch,
+ * which keeps the traffic to a few calls per refresh.
+ *
+ * All methods must be called on the main thread.
+ */
+class SyncStateRepository {
+    private static final String TAG = "AccountSettings";
+    private static final boolean LDEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    static final int SYNC_STATE_ALL = ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
+            | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
+            | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS;
+
+    /**
+     * Notified when the sync state changes.
+     */
+    interface SyncStateListener {
+        /**
+         * @param which the SYNC_OBSERVER_TYPE_* mask of what changed
+         */
+        void onSyncStateChanged(int which);
+
+        /**
+         * Called after a package was installed, updated or removed.
+         * @param changedAccountTypes the account types whose sync adapters came or went
+         *     or belong to the package, or null if that isn't known
+         */
+        void onPackageChanged(String packageName, HashSet<String> changedAccountTypes);
+    }
+
+    /**
+     * Identifies one authority of one account.
+     */
+    static final class Key {
+        final Account account;
+        final String authority;
+
+        Key(Account account, String authority) {
+            this.account = account;
+            this.authority = authority;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return account.equals(other.account) && authority.equals(other.authority);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * account.hashCode() + authority.hashCode();
+        }
+    }
+
+    /**
+     * Sync settings and status of one authority of one account. The settings half is
+     * reloaded after SETTINGS events and the status half after STATUS events.
+     */
+    static class AuthorityState {
+        boolean settingsLoaded;
+        boolean syncAutomatically;
+        int syncable;
+
+        boolean statusLoaded;
+        boolean pending;
+        boolean initialize;
+        long lastSuccessTime;
+        long lastFailureTime;
+        int lastFailureMesg;
+
+        /**
+         * Returns true if the last sync failed for a reason other than a sync already
+         * being in progress.
+         */
+        boolean isLastSyncFailed() {
+            return lastFailureTime != 0
+                    && lastFailureMesg != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+        }
+
+        /**
+         * Returns true if the authority syncs on its own with the given device wide
+         * settings, which is what the account list counts as enabled.
+         */
+        boolean isSyncEnabled(boolean masterSyncAutomatically, boolean backgroundDataSetting) {
+            return syncAutomatically && masterSyncAutomatically && backgroundDataSetting
+                    && syncable > 0;
+        }
+
+        /**
+         * Returns true if the sync screen shows the authority's checkbox as checked. With
+         * auto-sync or background data off the checkboxes only request one-time syncs and
+         * are all checked.
+         */
+        boolean isShownChecked(boolean masterSyncAutomatically,
+                boolean backgroundDataSetting) {
+            return syncAutomatically || !masterSyncAutomatically || !backgroundDataSetting;
+        }
+
+        /**
+         * Returns true if the last sync failed and no new one is pending or running, i.e.
+         * the failure is what the user should see.
+         */
+        boolean isFailing(boolean active) {
+            return isLastSyncFailed() && !pending && !active;
+        }
+    }
+
+    private static SyncStateRepository sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<SyncStateListener> mSyncStateListeners =
+            new ArrayList<SyncStateListener>();
+    private final ArrayList<OnAccountsUpdateListener> mAccountsListeners =
+            new ArrayList<OnAccountsUpdateListener>();
+    private Object mStatusChangeListenerHandle;
+
+    private int mVersion;
+    private Account[] mAccounts;
+    private SyncAdapterType[] mSyncAdapterTypes;
+    private HashSet<String> mUserVisibleAuthorities;
+    private final HashMap<String, CharSequence> mProviderLabels =
+            new HashMap<String, CharSequence>();
+    /** Packages of the providers in mProviderLabels, by authority. */
+    private final HashMap<String, String> mProviderPackages = new HashMap<String, String>();
+    private final HashMap<Key, AuthorityState> mStates = new HashMap<Key, AuthorityState>();
+    private Boolean mMasterSyncAutomatically;
+    private Boolean mBackgroundDataSetting;
+    private ActiveSyncIndex mActiveSyncs;
+    private final SyncWriteTracker mWriteTracker = new SyncWriteTracker(mHandler,
+            new SyncWriteTracker.Listener() {
+        public void onEchoWindowExpired(Set<Key> written, boolean masterWritten,
+                boolean changedElsewhere) {
+            if (changedElsewhere) {
+                // a change made elsewhere was taken for an echo; it may be one we kept out
+                dispatchSyncStateChanged(ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS);
+                return;
+            }
+            for (Key key : written) {
+                AuthorityState state = mStates.get(key);
+                if (state != null) {
+                    state.settingsLoaded = false;
+                }
+            }
+            if (masterWritten) {
+                mMasterSyncAutomatically = null;
+            }
+        }
+    });
+
+    private SyncStateRepository(Context context) {
+        mContext = context;
+    }
+
+    static SyncStateRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncStateRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
+        public void onStatusChanged(final int which) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    int changed = which;
+                    if ((changed & ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS) != 0
+                            && mWriteTracker.consumeEcho()) {
+                        // our own write coming back; the cache already holds it
+                        if (LDEBUG) Log.d(TAG, "suppressed settings echo");
+                        changed &= ~ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS;
+                    }
+                    if (changed != 0) {
+                        dispatchSyncStateChanged(changed);
+                    }
+                }
+            });
+        }
+    };
+
+    private final BroadcastReceiver mBackgroundDataReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            dispatchSyncStateChanged(ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS);
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null) {
+                return;
+            }
+            final String packageName = data.getSchemeSpecificPart();
+            // AuthenticatorCacheReceiver drops the cache files, maybe after the screens
+            // reloaded, so at least the old version code must be gone by then
+            AuthenticatorMetadataCache.getInstance(context).forget(packageName);
+            HashSet<String> changedAccountTypes = onPackageChanged(packageName);
+            // copy, listeners may unregister themselves
+            ArrayList<SyncStateListener> listeners =
+                    new ArrayList<SyncStateListener>(mSyncStateListeners);
+            for (SyncStateListener listener : listeners) {
+                listener.onPackageChanged(packageName, changedAccountTypes);
+            }
+        }
+    };
+
+    private final OnAccountsUpdateListener mAccountsUpdateListener =
+            new OnAccountsUpdateListener() {
+        public void onAccountsUpdated(Account[] accounts) {
+            mVersion++;
+            mAccounts = accounts;
+            // authorities may have become syncable or unsyncable for the new accounts
+            invalidate();
+            UnmeteredSyncQueue.removeMissingAccounts(mContext, accounts);
+            // copy, listeners may unregister themselves
+            ArrayList<OnAccountsUpdateListener> listeners =
+                    new ArrayList<OnAccountsUpdateListener>(mAccountsListeners);
+            for (OnAccountsUpdateListener listener : listeners) {
+                listener.onAccountsUpdated(accounts);
+            }
+        }
+    };
+
+    /**
+     * Registers a listener for sync state changes. The first listener registers the
+     * repository with the sync manager; the last one to leave unregisters it.
+     */
+    void addSyncStateListener(SyncStateListener listener) {
+        mSyncStateListeners.add(listener);
+        if (mStatusChangeListenerHandle == null) {
+            if (LDEBUG) Log.d(TAG, "registering sync status observer");
+            // nothing was observed while unregistered
+            mVersion++;
+            invalidate();
+            mSyncAdapterTypes = null;
+            mUserVisibleAuthorities = null;
+            mProviderLabels.clear();
+            mProviderPackages.clear();
+            final long start = IpcAuditor.begin();
+            mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
+                    SYNC_STATE_ALL, mSyncStatusObserver);
+            IpcAuditor.end("ContentResolver.addStatusChangeListener", start);
+            mContext.registerReceiver(mBackgroundDataReceiver, new IntentFilter(
+                    ConnectivityManager.ACTION_BACKGROUND_DATA_SETTING_CHANGED));
+            IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            mContext.registerReceiver(mPackageReceiver, filter);
+        }
+    }
+
+    void removeSyncStateListener(SyncStateListener listener) {
+        if (mSyncStateListeners.remove(listener) && mSyncStateListeners.isEmpty()) {
+            if (LDEBUG) Log.d(TAG, "unregistering sync status observer");
+            final long start = IpcAuditor.begin();
+            ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+            IpcAuditor.end("ContentResolver.removeStatusChangeListener", start);
+            mContext.unregisterReceiver(mBackgroundDataReceiver);
+            mContext.unregisterReceiver(mPackageReceiver);
+            mStatusChangeListenerHandle = null;
+            // changes are no longer observed, so the cache can't be trusted
+            invalidate();
+        }
+    }
+
+    /**
+     * Registers a listener for account changes, with the same reference counting as
+     * addSyncStateListener(). If updateImmediately is true the listener is called with
+     * the current accounts shortly after being added.
+     */
+    void addAccountsListener(final OnAccountsUpdateListener listener,
+            boolean updateImmediately) {
+        mAccountsListeners.add(listener);
+        if (mAccountsListeners.size() == 1) {
+            mAccounts = null;
+            final long start = IpcAuditor.begin();
+            AccountManager.get(mContext).addOnAccountsUpdatedListener(
+                    mAccountsUpdateListener, mHandler, false);
+            IpcAuditor.end("AccountManager.addOnAccountsUpdatedListener", start);
+        }
+        if (updateImmediately) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mAccountsListeners.contains(listener)) {
+                        listener.onAccountsUpdated(getAccounts());
+                    }
+                }
+            });
+        }
+    }
+
+    void removeAccountsListener(OnAccountsUpdateListener listener) {
+        if (mAccountsListeners.remove(listener) && mAccountsListeners.isEmpty()) {
+            final long start = IpcAuditor.begin();
+            AccountManager.get(mContext).removeOnAccountsUpdatedListener(
+                    mAccountsUpdateListener);
+            IpcAuditor.end("AccountManager.removeOnAccountsUpdatedListener", start);
+            mAccounts = null;
+        }
+    }
+
+    private void dispatchSyncStateChanged(int which) {
+        mVersion++;
+        invalidate(which);
+        // copy, listeners may unregister themselves
+        ArrayList<SyncStateListener> listeners =
+                new ArrayList<SyncStateListener>(mSyncStateListeners);
+        for (SyncStateListener listener : listeners) {
+            listener.onSyncStateChanged(which);
+        }
+    }
+
+    private void invalidate() {
+        mStates.clear();
+        invalidate(SYNC_STATE_ALL);
+    }
+
+    /**
+     * Drops only the cached values that an event of the given type can change.
+     */
+    private void invalidate(int which) {
+        final boolean settings = (which & ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS) != 0;
+        final boolean status = (which & ContentResolver.SYNC_OBSERVER_TYPE_STATUS) != 0;
+        if (settings || status) {
+            for (Map.Entry<Key, AuthorityState> entry : mStates.entrySet()) {
+                final AuthorityState state = entry.getValue();
+                // settings we just wrote are cached as written
+                if (settings && !mWriteTracker.isWritten(entry.getKey())) {
+                    state.settingsLoaded = false;
+                }
+                if (status) state.statusLoaded = false;
+            }
+        }
+        if (settings) {
+            if (!mWriteTracker.isMasterWritten()) {
+                mMasterSyncAutomatically = null;
+            }
+            mBackgroundDataSetting = null;
+        }
+        if ((which & ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE) != 0) {
+            mActiveSyncs = null;
+        }
+    }
+
+    /**
+     * Returns a number that moves every time an account or sync state change is observed.
+     * Screens compare it with the version they last showed to find out whether they need
+     * to refresh at all.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the accounts on the device. Cached while anyone listens for account changes.
+     */
+    Account[] getAccounts() {
+        if (mAccounts != null) {
+            return mAccounts;
+        }
+        final long start = IpcAuditor.begin();
+        Account[] accounts = AccountManager.get(mContext).getAccounts();
+        IpcAuditor.end("AccountManager.getAccounts", start);
+        if (!mAccountsListeners.isEmpty()) {
+            mAccounts = accounts;
+        }
+        return accounts;
+    }
+
+    /**
+     * Returns the sync adapters of the device. These only change when packages are
+     * installed or removed, so they are kept until the next time the repository starts
+     * observing sync state or a package changes.
+     */
+    SyncAdapterType[] getSyncAdapterTypes() {
+        if (mSyncAdapterTypes == null) {
+            final long start = IpcAuditor.begin();
+            mSyncAdapterTypes = ContentResolver.getSyncAdapterTypes();
+            IpcAuditor.end("ContentResolver.getSyncAdapterTypes", start);
+        }
+        return mSyncAdapterTypes;
+    }
+
+    /**
+     * Drops what was cached about the sync adapters after a package was installed,
+     * updated or removed, and works out which account types that affects.
+     * @return the account types whose sync adapters came or went or have a provider in the
+     *     package, or null if the sync adapters weren't loaded before
+     */
+    private HashSet<String> onPackageChanged(String packageName) {
+        final SyncAdapterType[] oldSyncAdapters = mSyncAdapterTypes;
+        HashSet<String> packageAuthorities = new HashSet<String>();
+        for (Map.Entry<String, String> entry : mProviderPackages.entrySet()) {
+            if (entry.getValue().equals(packageName)) {
+                packageAuthorities.add(entry.getKey());
+            }
+        }
+        mSyncAdapterTypes = null;
+        mUserVisibleAuthorities = null;
+        mProviderLabels.clear();
+        mProviderPackages.clear();
+        if (oldSyncAdapters == null) {
+            return null;
+        }
+        HashSet<SyncAdapterType> gone =
+                new HashSet<SyncAdapterType>(Arrays.asList(oldSyncAdapters));
+        HashSet<String> changedAccountTypes = new HashSet<String>();
+        for (SyncAdapterType sa : getSyncAdapterTypes()) {
+            if (!gone.remove(sa) || packageAuthorities.contains(sa.authority)) {
+                changedAccountTypes.add(sa.accountType);
+            }
+        }
+        for (SyncAdapterType sa : gone) {
+            changedAccountTypes.add(sa.accountType);
+        }
+        return changedAccountTypes;
+    }
+
+    /**
+     * Returns true if the sync adapter of the authority is shown to the user.
+     */
+    boolean isUserVisible(String authority) {
+        if (mUserVisibleAuthorities == null) {
+            mUserVisibleAuthorities = new HashSet<String>();
+            for (SyncAdapterType sa : getSyncAdapterTypes()) {
+                if (sa.isUserVisible()) {
+                    mUserVisibleAuthorities.add(sa.authority);
+                }
+            }
+        }
+        return mUserVisibleAuthorities.contains(authority);
+    }
+
+    /**
+     * Returns the label of the content provider of an authority, or the authority itself
+     * if the provider has none. Kept as long as the sync adapters are.
+     */
+    CharSequence getProviderLabel(String authority) {
+        CharSequence label = mProviderLabels.get(authority);
+        if (label == null) {
+            final PackageManager pm = mContext.getPackageManager();
+            final long start = IpcAuditor.begin();
+            final ProviderInfo providerInfo = pm.resolveContentProvider(authority, 0);
+            IpcAuditor.end("PackageManager.resolveContentProvider", start);
+            label = providerInfo != null ? providerInfo.loadLabel(pm) : null;
+            if (providerInfo != null) {
+                mProviderPackages.put(authority, providerInfo.packageName);
+            }
+            if (TextUtils.isEmpty(label)) {
+                Log.e(TAG, "Provider needs a label for authority '" + authority + "'");
+                label = authority;
+            }
+            mProviderLabels.put(authority, label);
+        }
+        return label;
+    }
+
+    boolean getMasterSyncAutomatically() {
+        if (mMasterSyncAutomatically == null) {
+            final long start = IpcAuditor.begin();
+            mMasterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
+            IpcAuditor.end("ContentResolver.getMasterSyncAutomatically", start);
+        }
+        return mMasterSyncAutomatically;
+    }
+
+    boolean getBackgroundDataSetting() {
+        if (mBackgroundDataSetting == null) {
+            ConnectivityManager connManager = (ConnectivityManager)
+                    mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            final long start = IpcAuditor.begin();
+            mBackgroundDataSetting = connManager.getBackgroundDataSetting();
+            IpcAuditor.end("ConnectivityManager.getBackgroundDataSetting", start);
+        }
+        return mBackgroundDataSetting;
+    }
+
+    /**
+     * Returns the syncs that are running right now.
+     */
+    ActiveSyncIndex getActiveSyncs() {
+        if (mActiveSyncs == null) {
+            mActiveSyncs = ActiveSyncIndex.load();
+        }
+        return mActiveSyncs;
+    }
+
+    /**
+     * Returns true if the given authority of the given account is syncing right now.
+     */
+    boolean isActive(Account account, String authority) {
+        return getActiveSyncs().isActive(account, authority);
+    }
+
+    /**
+     * Writes the auto-sync flag of an authority and updates the cache right away, so
+     * the new value is seen before the sync manager reports the change back. The
+     * SETTINGS callback echoing the write is not passed on to the listeners.
+     */
+    void setSyncAutomatically(Account account, String authority, boolean sync) {
+        final Key key = new Key(account, authority);
+        AuthorityState state = mStates.get(key);
+        // without a cached old value there's no telling whether the write is echoed
+        if (state != null && state.settingsLoaded && state.syncAutomatically != sync) {
+            mWriteTracker.recordWrite(key);
+        }
+        final long start = IpcAuditor.begin();
+        ContentResolver.setSyncAutomatically(account, authority, sync);
+        IpcAuditor.end("ContentResolver.setSyncAutomatically", start);
+        if (state != null && state.settingsLoaded) {
+            state.syncAutomatically = sync;
+        }
+    }
+
+    void setIsSyncable(Account account, String authority, int syncable) {
+        final Key key = new Key(account, authority);
+        AuthorityState state = mStates.get(key);
+        if (state != null && state.settingsLoaded && state.syncable != syncable) {
+            mWriteTracker.recordWrite(key);
+        }
+        final long start = IpcAuditor.begin();
+        ContentResolver.setIsSyncable(account, authority, syncable);
+        IpcAuditor.end("ContentResolver.setIsSyncable", start);
+        if (state != null && state.settingsLoaded) {
+            state.syncable = syncable;
+        }
+    }
+
+    void setMasterSyncAutomatically(boolean sync) {
+        if (mMasterSyncAutomatically != null && mMasterSyncAutomatically != sync) {
+            mWriteTracker.recordMasterWrite();
+        }
+        final long start = IpcAuditor.begin();
+        ContentResolver.setMasterSyncAutomatically(sync);
+        IpcAuditor.end("ContentResolver.setMasterSyncAutomatically", start);
+        mMasterSyncAutomatically = sync;
+    }
+
+    void setBackgroundDataSetting(boolean enabled) {
+        ConnectivityManager connManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final long start = IpcAuditor.begin();
+        connManager.setBackgroundDataSetting(enabled);
+        IpcAuditor.end("ConnectivityManager.setBackgroundDataSetting", start);
+        mBackgroundDataSetting = enabled;
+    }
+
+    /**
+     * Returns the cached sync settings and status of one authority of one account.
+     */
+    AuthorityState getAuthorityState(Account account, String authority) {
+        AuthorityState state = getAuthoritySettings(account, authority);
+        if (!state.statusLoaded) {
+            loadStatus(state, account, authority);
+        }
+        return state;
+    }
+
+    /**
+     * Like getAuthorityState(), but only the settings half is guaranteed to be loaded.
+     * The status fields must not be used.
+     */
+    AuthorityState getAuthoritySettings(Account account, String authority) {
+        Key key = new Key(account, authority);
+        AuthorityState state = mStates.get(key);
+        if (state == null) {
+            state = new AuthorityState();
+            mStates.put(key, state);
+        }
+        if (!state.settingsLoaded) {
+            loadSettings(state, account, authority);
+        }
+        return state;
+    }
+
+    /**
+     * Computes the status shown for an account in the account list: an error if any
+     * enabled authority failed its last sync and isn't about to retry, otherwise enabled
+     * if at least one user visible authority syncs automatically.
+     * @return one of AccountPreference.SYNC_ENABLED, SYNC_DISABLED or SYNC_ERROR
+     */
+    int getAccountSyncStatus(Account account, List<String> authorities) {
+        if (authorities == null) {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "no syncadapters found for " + account);
+            }
+            return AccountPreference.SYNC_DISABLED;
+        }
+        return computeAccountStatus(account, authorities, true);
+    }
+
+    /**
+     * Like getAccountSyncStatus(), but without asking which syncs are running, so a sync
+     * that failed last time and is running again still counts as an error. Good enough
+     * for the header of a collapsed group, which doesn't have to follow running syncs.
+     * @return one of AccountPreference.SYNC_ENABLED, SYNC_DISABLED or SYNC_ERROR
+     */
+    int getAccountSummaryStatus(Account account, List<String> authorities) {
+        if (authorities == null) {
+            return AccountPreference.SYNC_DISABLED;
+        }
+        return computeAccountStatus(account, authorities, false);
+    }
+
+    private int computeAccountStatus(Account account, List<String> authorities,
+            boolean checkActive) {
+        final boolean masterSyncAutomatically = getMasterSyncAutomatically();
+        final boolean backgroundDataSetting = getBackgroundDataSetting();
+        int syncCount = 0;
+        for (String authority : authorities) {
+            AuthorityState state = getAuthorityState(account, authority);
+            boolean syncEnabled =
+                    state.isSyncEnabled(masterSyncAutomatically, backgroundDataSetting);
+            if (syncEnabled
+                    && state.isFailing(checkActive && isActive(account, authority))) {
+                return AccountPreference.SYNC_ERROR;
+            }
+            syncCount += syncEnabled && isUserVisible(authority) ? 1 : 0;
+        }
+        return syncCount > 0 ? AccountPreference.SYNC_ENABLED : AccountPreference.SYNC_DISABLED;
+    }
+
+    /**
+     * Reads the sync settings and status of one authority straight from the sync manager,
+     * bypassing the cache. Safe to call from any thread.
+     */
+    static AuthorityState loadAuthorityState(Account account, String authority) {
+        AuthorityState state = new AuthorityState();
+        loadSettings(state, account, authority);
+        loadStatus(state, account, authority);
+        return state;
+    }
+
+    private static void loadSettings(AuthorityState state, Account account, String authority) {
+        long start = IpcAuditor.begin();
+        state.syncAutomatically = ContentResolver.getSyncAutomatically(account, authority);
+        IpcAuditor.end("ContentResolver.getSyncAutomatically", start);
+        start = IpcAuditor.begin();
+        state.syncable = ContentResolver.getIsSyncable(account, authority);
+        IpcAuditor.end("ContentResolver.getIsSyncable", start);
+        state.settingsLoaded = true;
+    }
+
+    private static void loadStatus(AuthorityState state, Account account, String authority) {
+        final long start = IpcAuditor.begin();
+        SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
+        IpcAuditor.end("ContentResolver.getSyncStatus", start);
+        if (status != null) {
+            state.pending = status.pending;
+            state.initialize = status.initialize;
+            state.lastSuccessTime = status.lastSuccessTime;
+            state.lastFailureTime = status.lastFailureTime;
+            state.lastFailureMesg = status.getLastFailureMesgAsInt(0);
+        } else {
+            state.pending = false;
+            state.initialize = false;
+            state.lastSuccessTime = 0;
+            state.lastFailureTime = 0;
+            state.lastFailureMesg = 0;
+        }
+        state.statusLoaded = true;
+    }
+}
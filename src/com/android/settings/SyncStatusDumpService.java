@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SyncAdapterType;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Writes the sync state of every authority of every account for scripts, one line per
+ * pair, without going through the screens:
+ * <pre>
+ *   SERVICE=com.android.providers.subscribedfeeds/com.android.settings.SyncStatusDumpService
+ *   adb shell am startservice -n $SERVICE
+ *   adb shell dumpsys activity service $SERVICE [ACCOUNT_TYPE]...
+ * </pre>
+ * The first line holds the global flags, the second the column names, and every other
+ * line is tab separated:
+ * <pre>
+ *   type  name  authority  visible  checked  enabled  syncAutomatically  syncable
+ *       pending  active  lastSuccessTime  lastFailureTime  lastFailureCode
+ * </pre>
+ * Types, names and authorities are Uri encoded, flags are 0 or 1 and times are in
+ * milliseconds since the epoch, 0 if there was none. checked is what the sync screen
+ * shows as checked and enabled is whether the authority syncs on its own, as the account
+ * list counts it; both come from SyncStateRepository.AuthorityState like on the screens.
+ * lastFailureCode is 0 unless the screens would show the last sync as failed.
+ *
+ * Each line is written as soon as its state is read, so the memory used doesn't grow
+ * with the number of accounts. The service stops itself shortly after the last dump.
+ */
+public class SyncStatusDumpService extends Service {
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mStopRunnable = new Runnable() {
+        public void run() {
+            stopSelf();
+        }
+    };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mHandler.removeCallbacks(mStopRunnable);
+        mHandler.postDelayed(mStopRunnable, IDLE_TIMEOUT);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // called on a binder thread, so the state is read without the repository's cache
+        mHandler.removeCallbacks(mStopRunnable);
+        mHandler.postDelayed(mStopRunnable, IDLE_TIMEOUT);
+        ConnectivityManager connManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        long start = IpcAuditor.begin();
+        final boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
+        IpcAuditor.end("ContentResolver.getMasterSyncAutomatically", start);
+        start = IpcAuditor.begin();
+        final boolean backgroundDataSetting = connManager.getBackgroundDataSetting();
+        IpcAuditor.end("ConnectivityManager.getBackgroundDataSetting", start);
+        writer.println("#masterSyncAutomatically=" + flag(masterSyncAutomatically)
+                + "\tbackgroundDataSetting=" + flag(backgroundDataSetting));
+        writer.println("#type\tname\tauthority\tvisible\tchecked\tenabled"
+                + "\tsyncAutomatically\tsyncable\tpending\tactive\tlastSuccessTime"
+                + "\tlastFailureTime\tlastFailureCode");
+
+        start = IpcAuditor.begin();
+        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+        IpcAuditor.end("ContentResolver.getSyncAdapterTypes", start);
+        final ActiveSyncIndex activeSyncs = ActiveSyncIndex.load();
+        start = IpcAuditor.begin();
+        final Account[] accounts = AccountManager.get(this).getAccounts();
+        IpcAuditor.end("AccountManager.getAccounts", start);
+        StringBuilder line = new StringBuilder();
+        for (Account account : accounts) {
+            if (!isRequested(account.type, args)) {
+                continue;
+            }
+            for (SyncAdapterType sa : syncAdapters) {
+                if (!sa.accountType.equals(account.type)) {
+                    continue;
+                }
+                SyncStateRepository.AuthorityState state =
+                        SyncStateRepository.loadAuthorityState(account, sa.authority);
+                line.setLength(0);
+                line.append(Uri.encode(account.type)).append('\t')
+                        .append(Uri.encode(account.name)).append('\t')
+                        .append(Uri.encode(sa.authority)).append('\t')
+                        .append(flag(sa.isUserVisible())).append('\t')
+                        .append(flag(state.isShownChecked(masterSyncAutomatically,
+                                backgroundDataSetting))).append('\t')
+                        .append(flag(state.isSyncEnabled(masterSyncAutomatically,
+                                backgroundDataSetting))).append('\t')
+                        .append(flag(state.syncAutomatically)).append('\t')
+                        .append(state.syncable).append('\t')
+                        .append(flag(state.pending)).append('\t')
+                        .append(flag(activeSyncs.isActive(account, sa.authority))).append('\t')
+                        .append(state.lastSuccessTime).append('\t')
+                        .append(state.lastFailureTime).append('\t')
+                        .append(state.isLastSyncFailed() ? state.lastFailureMesg : 0);
+                writer.println(line);
+            }
+            // hand each account's lines over before reading the next one
+            writer.flush();
+        }
+    }
+
+    private static boolean isRequested(String accountType, String[] args) {
+        if (args == null || args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (arg.equals(accountType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static char flag(boolean value) {
+        return value ? '1' : '0';
+    }
+}
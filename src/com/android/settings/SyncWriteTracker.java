@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Handler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers the sync settings written from this process, so SyncStateRepository can tell
+ * the SETTINGS callbacks the sync manager sends back for them from changes made
+ * elsewhere, without asking the sync manager again.
+ *
+ * Every write that changes a setting is echoed by one SETTINGS callback. Only writes
+ * whose old value was cached and differs are recorded; for the others there is no
+ * telling whether an echo comes, so their callback is handled as an outside change. Each
+ * callback that arrives while echoes are outstanding is taken as one of them. A change
+ * made elsewhere in the meantime uses up an echo in its place, so the last real echo
+ * then finds none left and is handled as an outside change. Until the echo window ends,
+ * the written settings keep the values cached when they were written and only the other
+ * settings are reloaded. When it ends the written settings are dropped as well, since a
+ * change made elsewhere may have touched them.
+ */
+class SyncWriteTracker {
+    /** How long after the last write a SETTINGS callback may still be its echo. */
+    private static final long ECHO_WINDOW_MS = 2000;
+
+    interface Listener {
+        /**
+         * Called on the handler's thread when the echo window ends.
+         * @param written the keys written during the window
+         * @param masterWritten whether the master sync switch was written
+         * @param changedElsewhere whether a callback during the window wasn't an echo
+         */
+        void onEchoWindowExpired(Set<SyncStateRepository.Key> written, boolean masterWritten,
+                boolean changedElsewhere);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private HashSet<SyncStateRepository.Key> mWritten =
+            new HashSet<SyncStateRepository.Key>();
+    private boolean mMasterWritten;
+    private boolean mChangedElsewhere;
+    private int mPendingEchoes;
+
+    private final Runnable mExpireRunnable = new Runnable() {
+        public void run() {
+            final HashSet<SyncStateRepository.Key> written = mWritten;
+            final boolean masterWritten = mMasterWritten;
+            final boolean changedElsewhere = mChangedElsewhere;
+            mWritten = new HashSet<SyncStateRepository.Key>();
+            mMasterWritten = false;
+            mChangedElsewhere = false;
+            mPendingEchoes = 0;
+            mListener.onEchoWindowExpired(written, masterWritten, changedElsewhere);
+        }
+    };
+
+    /**
+     * @param handler the handler of the thread the tracker is used on
+     */
+    SyncWriteTracker(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Records a write of the settings of one authority of one account. Only call it for
+     * writes that change a cached value.
+     */
+    void recordWrite(SyncStateRepository.Key key) {
+        mWritten.add(key);
+        recordEcho();
+    }
+
+    void recordMasterWrite() {
+        mMasterWritten = true;
+        recordEcho();
+    }
+
+    private void recordEcho() {
+        mPendingEchoes++;
+        mHandler.removeCallbacks(mExpireRunnable);
+        mHandler.postDelayed(mExpireRunnable, ECHO_WINDOW_MS);
+    }
+
+    /**
+     * Takes a SETTINGS callback received now as the echo of one of our writes, if any is
+     * outstanding.
+     * @return true if the callback is an echo
+     */
+    boolean consumeEcho() {
+        if (mPendingEchoes == 0) {
+            mChangedElsewhere |= mMasterWritten || !mWritten.isEmpty();
+            return false;
+        }
+        mPendingEchoes--;
+        return true;
+    }
+
+    /**
+     * Returns true if the settings of the key were written during the echo window, so
+     * their cached values are still the current ones.
+     */
+    boolean isWritten(SyncStateRepository.Key key) {
+        return mWritten.contains(key);
+    }
+
+    boolean isMasterWritten() {
+        return mMasterWritten;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Persisted list of syncs that stopped because they would have deleted too many items,
+ * so SyncActivityTooManyDeletes can show them together and resolve several in one go.
+ * There is at most one entry per (account, authority); a newer event replaces it.
+ * Entries older than MAX_AGE are dropped: by then the sync has hit the limit again and
+ * brought a fresh entry, or the deletes no longer matter.
+ */
+class TooManyDeletesQueue {
+    private static final String TAG = "AccountSettings";
+    private static final String PREFS_NAME = "too_many_deletes";
+    private static final String QUEUE_KEY = "queue";
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    static final int ACTION_REALLY_DELETE = 0;
+    static final int ACTION_UNDO_DELETES = 1;
+    static final int ACTION_DO_NOTHING = 2;
+
+    static class Conflict {
+        final Account account;
+        final String authority;
+        final String provider;
+        final long numDeletes;
+        /** When the sync stopped, in milliseconds since the epoch. */
+        final long time;
+
+        Conflict(Account account, String authority, String provider, long numDeletes,
+                long time) {
+            this.account = account;
+            this.authority = authority;
+            this.provider = provider;
+            this.numDeletes = numDeletes;
+            this.time = time;
+        }
+
+        /**
+         * Identifies the (account, authority) of the conflict.
+         */
+        String key() {
+            return Uri.encode(account.type) + "/" + Uri.encode(account.name) + "/"
+                    + Uri.encode(authority);
+        }
+    }
+
+    private TooManyDeletesQueue() {
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static void add(Context context, Conflict conflict) {
+        LinkedHashMap<String, Conflict> queue = readQueue(context);
+        queue.put(conflict.key(), conflict);
+        writeQueue(context, queue);
+    }
+
+    static ArrayList<Conflict> getConflicts(Context context) {
+        return new ArrayList<Conflict>(readQueue(context).values());
+    }
+
+    /**
+     * Applies one choice to several conflicts and removes them from the queue. The
+     * resulting syncs are requested in one pass, once per (account, authority). Only a
+     * single resolved conflict is expedited, so a batch doesn't push every other sync
+     * back at once.
+     */
+    static void resolve(Context context, List<Conflict> conflicts, int action) {
+        LinkedHashMap<String, Conflict> queue = readQueue(context);
+        LinkedHashMap<String, Conflict> dispatch = new LinkedHashMap<String, Conflict>();
+        for (Conflict conflict : conflicts) {
+            queue.remove(conflict.key());
+            dispatch.put(conflict.key(), conflict);
+        }
+        writeQueue(context, queue);
+        if (action == ACTION_DO_NOTHING) {
+            return;
+        }
+        final boolean expedited = dispatch.size() == 1;
+        for (Conflict conflict : dispatch.values()) {
+            Bundle extras = new Bundle();
+            if (action == ACTION_REALLY_DELETE) {
+                extras.putBoolean(ContentResolver.SYNC_EXTRAS_OVERRIDE_TOO_MANY_DELETIONS, true);
+            } else {
+                extras.putBoolean(ContentResolver.SYNC_EXTRAS_DISCARD_LOCAL_DELETIONS, true);
+            }
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, expedited);
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, true);
+            final long start = IpcAuditor.begin();
+            ContentResolver.requestSync(conflict.account, conflict.authority, extras);
+            IpcAuditor.end("ContentResolver.requestSync", start);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "resolved " + dispatch.size() + " too many deletes conflicts with "
+                    + action);
+        }
+    }
+
+    private static LinkedHashMap<String, Conflict> readQueue(Context context) {
+        LinkedHashMap<String, Conflict> queue = new LinkedHashMap<String, Conflict>();
+        String stored = getPrefs(context).getString(QUEUE_KEY, null);
+        final long now = System.currentTimeMillis();
+        if (!TextUtils.isEmpty(stored)) {
+            for (String item : stored.split(" ")) {
+                String[] parts = item.split("/");
+                if (parts.length != 6) {
+                    Log.w(TAG, "Dropping malformed too many deletes entry " + item);
+                    continue;
+                }
+                try {
+                    Conflict conflict = new Conflict(
+                            new Account(Uri.decode(parts[1]), Uri.decode(parts[0])),
+                            Uri.decode(parts[2]), Uri.decode(parts[3]),
+                            Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+                    if (now - conflict.time > MAX_AGE) {
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, "expired too many deletes entry " + item);
+                        }
+                        continue;
+                    }
+                    queue.put(conflict.key(), conflict);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Dropping malformed too many deletes entry " + item);
+                }
+            }
+        }
+        return queue;
+    }
+
+    private static void writeQueue(Context context, LinkedHashMap<String, Conflict> queue) {
+        ArrayList<String> items = new ArrayList<String>(queue.size());
+        for (Conflict conflict : queue.values()) {
+            items.add(conflict.key() + "/"
+                    + Uri.encode(conflict.provider != null ? conflict.provider : "") + "/"
+                    + conflict.numDeletes + "/" + conflict.time);
+        }
+        getPrefs(context).edit().putString(QUEUE_KEY, TextUtils.join(" ", items)).commit();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.Account;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * Persisted queue of sync requests for accounts that should only sync over unmetered
+ * networks. Requests made from the settings screens while on a metered network are
+ * stored here and issued together by {@link UnmeteredSyncReceiver} once the device
+ * connects to an unmetered network.
+ *
+ * The receiver is only enabled while the queue holds requests, so connectivity changes
+ * don't start the settings process for nothing. Its state is only changed when the queue
+ * becomes empty or stops being empty, since every change is broadcast as PACKAGE_CHANGED.
+ */
+class UnmeteredSyncQueue {
+    private static final String TAG = "AccountSettings";
+    private static final String PREFS_NAME = "unmetered_sync";
+    private static final String QUEUE_KEY = "queue";
+    private static final String ACCOUNT_KEY_PREFIX = "unmeteredOnly/";
+
+    private UnmeteredSyncQueue() {
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String accountKey(Account account) {
+        return ACCOUNT_KEY_PREFIX + Uri.encode(account.type) + "/" + Uri.encode(account.name);
+    }
+
+    private static String entry(Account account, String authority) {
+        return Uri.encode(account.type) + "/" + Uri.encode(account.name) + "/"
+                + Uri.encode(authority);
+    }
+
+    /**
+     * Returns true if the account should only sync over unmetered networks.
+     */
+    static boolean isUnmeteredOnly(Context context, Account account) {
+        return getPrefs(context).getBoolean(accountKey(account), false);
+    }
+
+    /**
+     * Sets whether the account should only sync over unmetered networks. Turning the mode
+     * off issues the requests that were queued for the account.
+     */
+    static void setUnmeteredOnly(Context context, Account account, boolean unmeteredOnly) {
+        getPrefs(context).edit().putBoolean(accountKey(account), unmeteredOnly).commit();
+        if (!unmeteredOnly) {
+            flush(context, account);
+        }
+    }
+
+    /**
+     * Returns true if the active network is unmetered. Only Wi-Fi is treated as unmetered;
+     * every other network type may be billed by volume.
+     */
+    static boolean isUnmeteredNetwork(Context context) {
+        ConnectivityManager connManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connManager.getActiveNetworkInfo();
+        return info != null && info.isConnected()
+                && info.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * Returns true if a sync request should be queued rather than issued right now.
+     */
+    static boolean shouldDefer(Context context, Account account) {
+        return isUnmeteredOnly(context, account) && !isUnmeteredNetwork(context);
+    }
+
+    static void enqueue(Context context, Account account, String authority) {
+        LinkedHashSet<String> queue = readQueue(context);
+        if (queue.add(entry(account, authority))) {
+            writeQueue(context, queue);
+        }
+    }
+
+    static void remove(Context context, Account account, String authority) {
+        LinkedHashSet<String> queue = readQueue(context);
+        if (queue.remove(entry(account, authority))) {
+            writeQueue(context, queue);
+        }
+    }
+
+    static boolean isQueued(Context context, Account account, String authority) {
+        return readQueue(context).contains(entry(account, authority));
+    }
+
+    static boolean isEmpty(Context context) {
+        return readQueue(context).isEmpty();
+    }
+
+    /**
+     * Drops the queued requests of accounts that are not in the given list. Requests of
+     * removed accounts would otherwise keep the receiver enabled until the next
+     * unmetered connection.
+     */
+    static void removeMissingAccounts(Context context, Account[] accounts) {
+        LinkedHashSet<String> queue = readQueue(context);
+        if (queue.isEmpty()) {
+            return;
+        }
+        HashSet<String> prefixes = new HashSet<String>();
+        for (Account account : accounts) {
+            prefixes.add(Uri.encode(account.type) + "/" + Uri.encode(account.name));
+        }
+        LinkedHashSet<String> remaining = new LinkedHashSet<String>();
+        for (String item : queue) {
+            int end = item.lastIndexOf('/');
+            if (end > 0 && prefixes.contains(item.substring(0, end))) {
+                remaining.add(item);
+            }
+        }
+        if (remaining.size() != queue.size()) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "dropped " + (queue.size() - remaining.size())
+                        + " queued syncs of removed accounts");
+            }
+            writeQueue(context, remaining);
+        }
+    }
+
+    /**
+     * Issues every queued request in one pass and empties the queue.
+     */
+    static void flush(Context context) {
+        flush(context, null);
+    }
+
+    /**
+     * Issues the queued requests of one account, or of all accounts if account is null.
+     */
+    private static void flush(Context context, Account account) {
+        LinkedHashSet<String> queue = readQueue(context);
+        if (queue.isEmpty()) {
+            return;
+        }
+        LinkedHashSet<String> remaining = new LinkedHashSet<String>();
+        for (String item : queue) {
+            String[] parts = item.split("/");
+            if (parts.length != 3) {
+                Log.w(TAG, "Dropping malformed queued sync request " + item);
+                continue;
+            }
+            Account queued = new Account(Uri.decode(parts[1]), Uri.decode(parts[0]));
+            if (account != null && !account.equals(queued)) {
+                remaining.add(item);
+                continue;
+            }
+            Bundle extras = new Bundle();
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            final long start = IpcAuditor.begin();
+            ContentResolver.requestSync(queued, Uri.decode(parts[2]), extras);
+            IpcAuditor.end("ContentResolver.requestSync", start);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "flushed " + (queue.size() - remaining.size()) + " queued syncs");
+        }
+        writeQueue(context, remaining);
+    }
+
+    private static LinkedHashSet<String> readQueue(Context context) {
+        LinkedHashSet<String> queue = new LinkedHashSet<String>();
+        String stored = getPrefs(context).getString(QUEUE_KEY, null);
+        if (!TextUtils.isEmpty(stored)) {
+            for (String item : stored.split(" ")) {
+                queue.add(item);
+            }
+        }
+        return queue;
+    }
+
+    private static void writeQueue(Context context, LinkedHashSet<String> queue) {
+        SharedPreferences prefs = getPrefs(context);
+        final boolean wasEmpty = TextUtils.isEmpty(prefs.getString(QUEUE_KEY, null));
+        prefs.edit().putString(QUEUE_KEY, TextUtils.join(" ", queue)).commit();
+        if (wasEmpty != queue.isEmpty()) {
+            setReceiverEnabled(context, wasEmpty);
+        }
+    }
+
+    /**
+     * Enables or disables UnmeteredSyncReceiver. It is disabled in the manifest, and
+     * disables itself again if it finds the queue empty.
+     */
+    static void setReceiverEnabled(Context context, boolean enabled) {
+        final long start = IpcAuditor.begin();
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, UnmeteredSyncReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+        IpcAuditor.end("PackageManager.setComponentEnabledSetting", start);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.accounts.AccountManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Issues the sync requests held in {@link UnmeteredSyncQueue} once the device is on an
+ * unmetered network.
+ */
+public class UnmeteredSyncReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        UnmeteredSyncQueue.removeMissingAccounts(context,
+                AccountManager.get(context).getAccounts());
+        if (UnmeteredSyncQueue.isEmpty(context)) {
+            // nothing to wait for, stop getting every connectivity change
+            UnmeteredSyncQueue.setReceiverEnabled(context, false);
+        } else if (UnmeteredSyncQueue.isUnmeteredNetwork(context)) {
+            UnmeteredSyncQueue.flush(context);
+        }
+    }
+}